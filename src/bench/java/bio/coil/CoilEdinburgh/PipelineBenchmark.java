@@ -0,0 +1,161 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-spot and per-cell stages on synthetic stacks.
+ * <p>
+ * Each parameter combination is one point on a scaling curve, pick the points with -p, e.g.
+ * {@code -p size=512,1024,2048 -p cells=16,64,256}. The {@link SyntheticStack} is seeded so every run benchmarks
+ * the same data.
+ * Parallel stages run on the common fork-join pool, set its size with
+ * {@code -jvmArgs -Djava.util.concurrent.ForkJoinPool.common.parallelism=N}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class PipelineBenchmark {
+
+    @Param({"512", "1024"})
+    public int size;
+
+    @Param({"20"})
+    public int slices;
+
+    @Param({"16", "64"})
+    public int cells;
+
+    @Param({"2", "8"})
+    public int spotsPerCell;
+
+    private ImagePlus fish;
+    private ImagePlus dapi;
+    private ZMaxProjection fishProjection;
+    private LabelImage labels;
+    private Roi[] outlines;
+    private CellMasks masks;
+    private double[][] spots;
+    private Shelagh_FISH<?> plugin;
+    private double[][] xyzSpots;
+    private double[][] xyzCellSpots;
+    private double[][] lines;
+    private LineReslicer reslicer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticStack data = new SyntheticStack(size, slices, cells, spotsPerCell, 50, 42);
+        fish = data.getFish();
+        dapi = data.getDapi();
+        fishProjection = ZMaxProjection.of(fish);
+        labels = data.getLabels();
+        outlines = labels.getOutlines();
+        masks = CellMasks.label(dapi.getStack(), labels.getLabels(), labels.getCount(), 1000, 65535, 1);
+        spots = data.getSpots();
+
+        plugin = new Shelagh_FISH<>();
+        plugin.pixelWidth = dapi.getCalibration().pixelWidth;
+        plugin.pixelHeight = dapi.getCalibration().pixelHeight;
+        plugin.pixelDepth = dapi.getCalibration().pixelDepth;
+        xyzSpots = plugin.findZPositions(fishProjection, dapi, spots);
+        xyzCellSpots = plugin.whichCell(xyzSpots, labels);
+
+        //The line from the cell centre through each spot, as used by findDistance and makeSlices
+        lines = new double[xyzCellSpots.length][];
+        for (int i = 0; i < lines.length; i++) {
+            double[] centroid = outlines[(int) xyzCellSpots[i][3] - 1].getContourCentroid();
+            lines[i] = plugin.get2Dline(xyzCellSpots[i][0], xyzCellSpots[i][1], centroid[0], centroid[1]);
+        }
+        reslicer = new LineReslicer(dapi, plugin.pixelDepth / plugin.pixelWidth);
+    }
+
+    @Benchmark
+    public ZMaxProjection zMaxProjection() {
+        return ZMaxProjection.of(fish);
+    }
+
+    @Benchmark
+    public double[][] findSpots3D() {
+        return SpotDetector3D.detect(fish.getStack(), dapi.getStack(), SyntheticStack.SPOT_SIGMA,
+                plugin.pixelWidth / plugin.pixelDepth, 1000, 1000).select(1000);
+    }
+
+    @Benchmark
+    public double[][] findZPositions() {
+        return plugin.findZPositions(fishProjection, dapi, spots);
+    }
+
+    @Benchmark
+    public double[][] whichCell() {
+        return plugin.whichCell(xyzSpots, labels);
+    }
+
+    @Benchmark
+    public CellMasks labelCellMasks() {
+        return CellMasks.label(dapi.getStack(), labels.getLabels(), labels.getCount(), 1000, 65535, 1);
+    }
+
+    @Benchmark
+    public double[][] get3DCellStats() {
+        return plugin.get3DCellStats(masks, dapi);
+    }
+
+    @Benchmark
+    public double getIntersects() {
+        double sum = 0;
+        for (int i = 0; i < lines.length; i++) {
+            double[][] intersects = plugin.getIntersects(lines[i], masks, (int) xyzCellSpots[i][3] - 1);
+            //Each line starts at the cell centroid
+            sum += plugin.getNearestIntersect(intersects, xyzCellSpots[i], lines[i])[3];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double[][] findDistance() {
+        return plugin.findDistance(xyzCellSpots, masks, outlines, null);
+    }
+
+    @Benchmark
+    public double[][] findEdgeDistance() {
+        //Fresh maps each time so building them is part of the measurement
+        plugin.edgeMaps = new EdgeDistanceMap[outlines.length];
+        return plugin.findEdgeDistance(xyzCellSpots, masks, outlines, null);
+    }
+
+    @Benchmark
+    public FloatProcessor reslice() {
+        FloatProcessor out = new FloatProcessor(200, reslicer.getHeight());
+        for (double[] line : lines) {
+            reslicer.sample(line[0], line[1], line[2], line[3], out);
+        }
+        return out;
+    }
+}
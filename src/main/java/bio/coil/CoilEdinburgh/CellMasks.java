@@ -0,0 +1,319 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Per-cell, per-slice nucleus masks.
+ * <p>
+ * The thresholded stack is labelled once, slice by slice, with 8-connected components that are not allowed to cross
+ * from one cell outline into another. For every cell and slice the largest component of at least minSize pixels is
+ * kept with its holes filled, which is the same rule as taking the largest particle from Analyze Particles inside the
+ * cell outline. Each mask is stored as the sorted pixel indices (y*width+x) so its area is just the array length.
+ * Slices are labelled in parallel on the pool of the calling thread and each one only writes its own masks, so the
+ * result does not depend on the number of threads.
+ * </p>
+ */
+final class CellMasks {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int width;
+    private final int height;
+    private final int[][][] pixels;
+
+    private CellMasks(int width, int height, int[][][] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Labels the stack and keeps the largest particle per cell and slice.
+     *
+     * @param stack   the (background subtracted) DAPI stack
+     * @param cells   cell label per pixel, 0 for background and i+1 for cell i
+     * @param nCells  number of cells in the label image
+     * @param lower   lower threshold
+     * @param upper   upper threshold
+     * @param minSize smallest particle to keep, in pixels
+     */
+    static CellMasks label(ImageStack stack, int[] cells, int nCells, double lower, double upper, int minSize) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int nSlices = stack.getSize();
+        int[][][] pixels = new int[nCells][nSlices][];
+
+        //Slices are labelled independently, each thread reuses its own buffers from slice to slice
+        ThreadLocal<int[][]> buffers = ThreadLocal.withInitial(
+                () -> new int[][]{new int[width * height], new int[width * height + 1]});
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            int[] components = buffers.get()[0];
+            int[] parent = buffers.get()[1];
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            int n = labelSlice(ip, cells, lower, upper, width, height, components, parent);
+
+            //Area, owning cell and bounding box of every component
+            int[] area = new int[n + 1];
+            int[] cellOf = new int[n + 1];
+            int[] minX = new int[n + 1];
+            int[] minY = new int[n + 1];
+            int[] maxX = new int[n + 1];
+            int[] maxY = new int[n + 1];
+            Arrays.fill(minX, Integer.MAX_VALUE);
+            Arrays.fill(minY, Integer.MAX_VALUE);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int id = components[y * width + x];
+                    if (id != 0) {
+                        area[id]++;
+                        cellOf[id] = cells[y * width + x];
+                        minX[id] = Math.min(minX[id], x);
+                        minY[id] = Math.min(minY[id], y);
+                        maxX[id] = Math.max(maxX[id], x);
+                        maxY[id] = Math.max(maxY[id], y);
+                    }
+                }
+            }
+
+            //Largest component per cell, on a tie the first one in scan order wins
+            int[] best = new int[nCells + 1];
+            for (int id = 1; id <= n; id++) {
+                int cell = cellOf[id];
+                if (area[id] >= minSize && (best[cell] == 0 || area[id] > area[best[cell]])) {
+                    best[cell] = id;
+                }
+            }
+            for (int cell = 1; cell <= nCells; cell++) {
+                int id = best[cell];
+                pixels[cell - 1][z] = id == 0 ? EMPTY
+                        : fill(components, width, id, minX[id], minY[id], maxX[id], maxY[id]);
+            }
+        });
+        return new CellMasks(width, height, pixels);
+    }
+
+    //Two-pass union-find labelling of one slice, components are numbered 1..n in scan order
+    private static int labelSlice(ImageProcessor ip, int[] cells, double lower, double upper, int width, int height,
+                                  int[] components, int[] parent) {
+        int next = 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = y * width + x;
+                components[p] = 0;
+                int cell = cells[p];
+                if (cell == 0) {
+                    continue;
+                }
+                double value = ip.getf(p);
+                if (value < lower || value > upper) {
+                    continue;
+                }
+                int label = 0;
+                if (x > 0 && cells[p - 1] == cell) {
+                    label = join(parent, label, components[p - 1]);
+                }
+                if (y > 0) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx;
+                        if (nx >= 0 && nx < width && cells[p - width + dx] == cell) {
+                            label = join(parent, label, components[p - width + dx]);
+                        }
+                    }
+                }
+                if (label == 0) {
+                    label = next;
+                    parent[next] = next;
+                    next++;
+                }
+                components[p] = label;
+            }
+        }
+
+        //Second pass, replace every provisional label by its root numbered in order of first appearance
+        int[] remap = new int[next];
+        int n = 0;
+        for (int p = 0; p < width * height; p++) {
+            if (components[p] != 0) {
+                int root = find(parent, components[p]);
+                if (remap[root] == 0) {
+                    remap[root] = ++n;
+                }
+                components[p] = remap[root];
+            }
+        }
+        return n;
+    }
+
+    private static int join(int[] parent, int label, int other) {
+        if (other == 0) {
+            return label;
+        }
+        int b = find(parent, other);
+        if (label == 0) {
+            return b;
+        }
+        int a = find(parent, label);
+        if (a < b) {
+            parent[b] = a;
+            return a;
+        }
+        parent[a] = b;
+        return b;
+    }
+
+    private static int find(int[] parent, int label) {
+        int root = label;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        //Path compression
+        while (parent[label] != root) {
+            int up = parent[label];
+            parent[label] = root;
+            label = up;
+        }
+        return root;
+    }
+
+    //Pixels of one component plus any holes it encloses, as sorted indices
+    private static int[] fill(int[] components, int width, int id, int minX, int minY, int maxX, int maxY) {
+
+        //Local copy with a one pixel border of background around the bounding box
+        int bw = maxX - minX + 3;
+        int bh = maxY - minY + 3;
+        byte[] local = new byte[bw * bh];
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                if (components[y * width + x] == id) {
+                    local[(y - minY + 1) * bw + (x - minX + 1)] = 1;
+                }
+            }
+        }
+
+        //Flood the 4-connected background from the border, anything it cannot reach is a hole
+        int[] queue = new int[bw * bh];
+        int head = 0;
+        int tail = 0;
+        local[0] = 2;
+        queue[tail++] = 0;
+        int count = bw * bh - 1;
+        while (head < tail) {
+            int q = queue[head++];
+            int qx = q % bw;
+            int qy = q / bw;
+            if (qx > 0 && local[q - 1] == 0) {
+                local[q - 1] = 2;
+                queue[tail++] = q - 1;
+                count--;
+            }
+            if (qx < bw - 1 && local[q + 1] == 0) {
+                local[q + 1] = 2;
+                queue[tail++] = q + 1;
+                count--;
+            }
+            if (qy > 0 && local[q - bw] == 0) {
+                local[q - bw] = 2;
+                queue[tail++] = q - bw;
+                count--;
+            }
+            if (qy < bh - 1 && local[q + bw] == 0) {
+                local[q + bw] = 2;
+                queue[tail++] = q + bw;
+                count--;
+            }
+        }
+
+        int[] mask = new int[count];
+        int k = 0;
+        for (int ly = 1; ly < bh - 1; ly++) {
+            for (int lx = 1; lx < bw - 1; lx++) {
+                if (local[ly * bw + lx] != 2) {
+                    mask[k++] = (ly - 1 + minY) * width + (lx - 1 + minX);
+                }
+            }
+        }
+        return mask;
+    }
+
+    int getNCells() {
+        return pixels.length;
+    }
+
+    int getNSlices() {
+        return pixels.length == 0 ? 0 : pixels[0].length;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sorted pixel indices (y*width+x) of the cell in the slice, empty if no particle was found.
+     */
+    int[] getPixels(int cell, int slice) {
+        return pixels[cell][slice];
+    }
+
+    int getArea(int cell, int slice) {
+        return pixels[cell][slice].length;
+    }
+
+    boolean isEmpty(int cell, int slice) {
+        return pixels[cell][slice].length == 0;
+    }
+
+    boolean contains(int cell, int slice, int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        return Arrays.binarySearch(pixels[cell][slice], y * width + x) >= 0;
+    }
+
+    /**
+     * Traced outline of the mask, for drawing. Returns null if the mask is empty.
+     */
+    Roi getRoi(int cell, int slice) {
+        int[] mask = pixels[cell][slice];
+        if (mask.length == 0) {
+            return null;
+        }
+        int minX = Integer.MAX_VALUE;
+        int maxX = 0;
+        int minY = mask[0] / width;
+        int maxY = mask[mask.length - 1] / width;
+        for (int p : mask) {
+            minX = Math.min(minX, p % width);
+            maxX = Math.max(maxX, p % width);
+        }
+        ByteProcessor binary = new ByteProcessor(maxX - minX + 1, maxY - minY + 1);
+        for (int p : mask) {
+            binary.set(p % width - minX, p / width - minY, 255);
+        }
+        Wand wand = new Wand(binary);
+        wand.autoOutline(mask[0] % width - minX, 0, 255.0, 255.0, Wand.LEGACY_MODE);
+        PolygonRoi roi = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints),
+                Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints, Roi.TRACED_ROI);
+        roi.setLocation(roi.getBounds().x + minX, roi.getBounds().y + minY);
+        return roi;
+    }
+}
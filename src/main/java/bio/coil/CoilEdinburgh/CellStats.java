@@ -0,0 +1,135 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import java.util.Arrays;
+
+/**
+ * Streaming max, min, mean and median of the pixels under a mask.
+ * <p>
+ * 8 and 16-bit pixels go into a fixed 65536 bin histogram, so the median is exact and memory does not grow with the
+ * number of pixels. Pixels are read straight from the slice arrays without copying or boxing. 32-bit images cannot be
+ * binned exactly, so their values are kept in a primitive buffer and sorted instead.
+ * </p>
+ * One instance can be reused for any number of cells by calling {@link #reset()}, it is not thread safe. All the
+ * pixels added between resets are expected to come from the same stack, so the same bit depth.
+ */
+final class CellStats {
+
+    private final int[] histogram = new int[65536];
+    private float[] floats = new float[0];
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private int lowBin;
+    private int highBin;
+    private int nFloats;
+
+    CellStats() {
+        reset();
+    }
+
+    void reset() {
+        //Only the bins between the lowest and highest value seen can be non-zero
+        if (highBin >= lowBin) {
+            Arrays.fill(histogram, lowBin, highBin + 1, 0);
+        }
+        lowBin = histogram.length;
+        highBin = -1;
+        nFloats = 0;
+        count = 0;
+        sum = 0;
+        min = Double.MAX_VALUE;
+        max = -Double.MAX_VALUE;
+    }
+
+    /**
+     * Adds the pixels at the given indices of one slice.
+     *
+     * @param pixels  the slice pixel array (byte[], short[] or float[]) as returned by ImageStack.getPixels
+     * @param indices pixel indices y*width+x
+     */
+    void add(Object pixels, int[] indices) {
+        if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            for (int index : indices) {
+                addBin(values[index] & 0xffff);
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            for (int index : indices) {
+                addBin(values[index] & 0xff);
+            }
+        } else {
+            float[] values = (float[]) pixels;
+            if (nFloats + indices.length > floats.length) {
+                floats = Arrays.copyOf(floats, Math.max(nFloats + indices.length, floats.length * 2));
+            }
+            for (int index : indices) {
+                float value = values[index];
+                floats[nFloats++] = value;
+                count++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+    }
+
+    private void addBin(int value) {
+        histogram[value]++;
+        count++;
+        sum += value;
+        if (value < lowBin) {
+            lowBin = value;
+        }
+        if (value > highBin) {
+            highBin = value;
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMax() {
+        return highBin >= 0 ? Math.max(max, highBin) : max;
+    }
+
+    double getMin() {
+        return highBin >= 0 ? Math.min(min, lowBin) : min;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * The value at position count/2 of the sorted pixels, the same element the sorted list used to give.
+     */
+    double getMedian() {
+        if (count == 0) {
+            return 0;
+        }
+        long target = count / 2;
+        if (nFloats > 0) {
+            Arrays.sort(floats, 0, nFloats);
+            return floats[(int) target];
+        }
+        long cumulative = 0;
+        for (int bin = lowBin; bin <= highBin; bin++) {
+            cumulative += histogram[bin];
+            if (cumulative > target) {
+                return bin;
+            }
+        }
+        return highBin;
+    }
+}
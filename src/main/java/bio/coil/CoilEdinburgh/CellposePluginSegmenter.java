@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cellpose through the BIOP wrapper command, which starts a new Python process for every projection.
+ */
+final class CellposePluginSegmenter implements Segmenter {
+
+    static final String COMMAND = "ch.epfl.biop.wrappers.cellpose.ij2commands.Cellpose_SegmentImgPlusAdvanced";
+
+    private final CommandService commandService;
+    private final Map<String, Object> settings;
+
+    /**
+     * @param settings the wrapper's inputs, see {@link #defaultSettings()}
+     */
+    CellposePluginSegmenter(CommandService commandService, Map<String, Object> settings) {
+        this.commandService = commandService;
+        this.settings = settings;
+    }
+
+    /**
+     * The cyto2 settings the plugin has always used.
+     */
+    static Map<String, Object> defaultSettings() {
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put("diameter", 100);
+        inputs.put("cellproba_threshold", 0.0);
+        inputs.put("flow_threshold", 0.4);
+        inputs.put("anisotropy", 1.0);
+        inputs.put("diam_threshold", 12.0);
+        inputs.put("model", "cyto2");
+        inputs.put("nuclei_channel", 0);
+        inputs.put("cyto_channel", 1);
+        inputs.put("dimensionMode", "2D");
+        inputs.put("stitch_threshold", -1);
+        inputs.put("omni", false);
+        inputs.put("cluster", false);
+        inputs.put("additional_flags", "");
+        return inputs;
+    }
+
+    @Override
+    public Map<String, Object> getSettings() {
+        return settings;
+    }
+
+    @Override
+    public LabelImage segment(ImagePlus projection) throws IOException {
+        Map<String, Object> inputs = new HashMap<>(settings);
+        inputs.put("imp", projection);
+        try {
+            CommandModule module = commandService.run(COMMAND, false, inputs).get();
+            ImagePlus mask = (ImagePlus) module.getOutput("cellpose_imp");
+            if (mask == null) {
+                throw new IOException("Cellpose returned no label image");
+            }
+            return LabelImage.fromMask(mask);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Cellpose");
+        } catch (ExecutionException e) {
+            throw new IOException("Cellpose failed: " + e.getCause(), e.getCause());
+        }
+    }
+}
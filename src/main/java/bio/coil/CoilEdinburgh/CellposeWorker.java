@@ -0,0 +1,310 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cellpose in a long-lived worker process, so Python starts and the model loads once per JVM rather than per image.
+ * <p>
+ * Projections from every run in the JVM go through one queue. A dispatcher thread takes whatever is waiting, up to
+ * the batch size, sends it to the worker in one message and hands each caller its labels. The worker is started on
+ * the first request and restarted after an error.
+ * </p>
+ * <p>
+ * The protocol is binary and big-endian on the worker's stdin and stdout:
+ * </p>
+ * <ul>
+ * <li>on start: int n, then n bytes of UTF-8 JSON with the settings</li>
+ * <li>each batch: int count, then per image int width, int height and width*height float32 pixels</li>
+ * <li>each reply: per image int width, int height and width*height int32 labels</li>
+ * </ul>
+ * <p>
+ * The Cellpose worker is cellpose_worker.py, shipped with the plugin. The tests run a Java stand-in that speaks the
+ * same protocol without Python to check the plumbing.
+ * </p>
+ */
+final class CellposeWorker implements Segmenter, Closeable {
+
+    /**
+     * Replaced in the command by the path of the bundled worker script.
+     */
+    static final String SCRIPT = "{script}";
+    static final String DEFAULT_COMMAND = "python -u " + SCRIPT;
+
+    private static final Map<String, CellposeWorker> WORKERS = new HashMap<>();
+
+    private final List<String> command;
+    private final Map<String, Object> settings;
+    private final int batchSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    //Only the dispatcher thread talks to the process, close() may also stop it
+    private volatile Process process;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    private Thread dispatcher;
+
+    private static final class Request {
+        final ImagePlus projection;
+        final CompletableFuture<LabelImage> result = new CompletableFuture<>();
+
+        Request(ImagePlus projection) {
+            this.projection = projection;
+        }
+    }
+
+    CellposeWorker(String command, Map<String, Object> settings, int batchSize) {
+        this.command = tokenize(command);
+        this.settings = settings;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * The worker for this command and settings, shared by every run in the JVM and stopped when the JVM exits.
+     */
+    static synchronized CellposeWorker shared(String command, Map<String, Object> settings, int batchSize) {
+        String key = command + " " + new TreeMap<>(settings);
+        CellposeWorker worker = WORKERS.get(key);
+        if (worker == null) {
+            if (WORKERS.isEmpty()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(CellposeWorker::closeAll));
+            }
+            worker = new CellposeWorker(command, settings, batchSize);
+            WORKERS.put(key, worker);
+        }
+        return worker;
+    }
+
+    private static synchronized void closeAll() {
+        for (CellposeWorker worker : WORKERS.values()) {
+            worker.close();
+        }
+        WORKERS.clear();
+    }
+
+    @Override
+    public Map<String, Object> getSettings() {
+        Map<String, Object> key = new HashMap<>(settings);
+        key.put("backend", "worker");
+        return key;
+    }
+
+    @Override
+    public LabelImage segment(ImagePlus projection) throws IOException {
+        return segmentAll(Collections.singletonList(projection)).get(0);
+    }
+
+    @Override
+    public List<LabelImage> segmentAll(List<ImagePlus> projections) throws IOException {
+        startDispatcher();
+        List<Request> requests = new ArrayList<>();
+        for (ImagePlus projection : projections) {
+            requests.add(new Request(projection));
+        }
+        queue.addAll(requests);
+        List<LabelImage> labels = new ArrayList<>();
+        for (Request request : requests) {
+            try {
+                labels.add(request.result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the Cellpose worker");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            }
+        }
+        return labels;
+    }
+
+    private synchronized void startDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new Thread(this::dispatch, "Cellpose worker");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            try {
+                List<LabelImage> labels = send(batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result.complete(labels.get(i));
+                }
+            } catch (IOException e) {
+                //Drop the process, the next batch starts a fresh one
+                stopProcess();
+                for (Request request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+        }
+        stopProcess();
+    }
+
+    private List<LabelImage> send(List<Request> batch) throws IOException {
+        if (process == null || !process.isAlive()) {
+            startProcess();
+        }
+        out.writeInt(batch.size());
+        for (Request request : batch) {
+            ImageProcessor ip = request.projection.getProcessor();
+            ByteBuffer pixels = ByteBuffer.allocate(ip.getPixelCount() * 4);
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                pixels.putFloat(ip.getf(i));
+            }
+            out.writeInt(ip.getWidth());
+            out.writeInt(ip.getHeight());
+            out.write(pixels.array());
+        }
+        out.flush();
+
+        List<LabelImage> labels = new ArrayList<>();
+        for (Request request : batch) {
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width != request.projection.getWidth() || height != request.projection.getHeight()) {
+                throw new IOException("Cellpose worker returned a " + width + "x" + height + " mask for a "
+                        + request.projection.getWidth() + "x" + request.projection.getHeight() + " image");
+            }
+            byte[] bytes = new byte[width * height * 4];
+            in.readFully(bytes);
+            int[] values = new int[width * height];
+            ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+            labels.add(LabelImage.fromLabels(width, height, values));
+        }
+        return labels;
+    }
+
+    private void startProcess() throws IOException {
+        List<String> args = new ArrayList<>();
+        File script = null;
+        for (String arg : command) {
+            if (arg.contains(SCRIPT) && script == null) {
+                script = extractScript();
+            }
+            args.add(arg.contains(SCRIPT) ? arg.replace(SCRIPT, script.getPath()) : arg);
+        }
+        IJ.log("Starting Cellpose worker: " + String.join(" ", args));
+        process = new ProcessBuilder(args).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+
+        byte[] json = toJson(settings).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(json.length);
+        out.write(json);
+        out.flush();
+    }
+
+    private void stopProcess() {
+        Process running = process;
+        process = null;
+        if (running != null) {
+            running.destroy();
+        }
+    }
+
+    /**
+     * Stops the dispatcher and the worker process, anything still queued fails.
+     */
+    @Override
+    public synchronized void close() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+        stopProcess();
+        List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (Request request : pending) {
+            request.result.completeExceptionally(new IOException("Cellpose worker stopped"));
+        }
+    }
+
+    //Copy of the bundled script on disk, so the worker command can point at it
+    private static File extractScript() throws IOException {
+        File script = File.createTempFile("shelagh_fish_cellpose_worker", ".py");
+        script.deleteOnExit();
+        try (InputStream resource = CellposeWorker.class.getResourceAsStream("/cellpose_worker.py")) {
+            if (resource == null) {
+                throw new IOException("cellpose_worker.py is missing from the plugin jar");
+            }
+            Files.copy(resource, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script;
+    }
+
+    //Flat JSON object, numbers and booleans as they are and everything else as a string
+    static String toJson(Map<String, Object> settings) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : new TreeMap<>(settings).entrySet()) {
+            if (json.length() > 1) {
+                json.append(",");
+            }
+            json.append('"').append(entry.getKey()).append("\":");
+            Object value = entry.getValue();
+            if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else {
+                json.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append('"');
+            }
+        }
+        return json.append("}").toString();
+    }
+
+    //Splits on spaces, double quotes keep paths with spaces together
+    static List<String> tokenize(String command) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command);
+        while (matcher.find()) {
+            tokens.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.services.FormatService;
+import io.scif.util.FormatTools;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.FinalInterval;
+import org.scijava.io.location.FileLocation;
+import org.scijava.util.Bytes;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads single channels of a file plane by plane through SCIFIO (and Bio-Formats via scifio-bf-compat).
+ * <p>
+ * Opening only parses the metadata, so the calibration and dimensions are known without reading any pixels. Each
+ * call to {@link #loadChannel(int)} then reads just the Z planes of that channel, so the channels the pipeline does
+ * not use never reach the heap. Multi-position files have one series per position (a SCIFIO image), and every
+ * series can have several time points; {@link #loadChannel(int, int, int, Rectangle)} reads the Z-stack of one.
+ * {@link #loadChannel(int, Rectangle)} reads just part of each plane, for fields too big to hold whole.
+ * </p>
+ */
+final class ChannelLoader implements Closeable {
+
+    private final Reader reader;
+    private final List<ImageMetadata> metadata;
+    private final String title;
+
+    ChannelLoader(FormatService formatService, File file) throws IOException {
+        FileLocation location = new FileLocation(file);
+        try {
+            reader = formatService.getFormat(location).createReader();
+            reader.setSource(location);
+        } catch (FormatException e) {
+            throw new IOException("Cannot read " + file + ": " + e.getMessage(), e);
+        }
+        metadata = reader.getMetadata().getAll();
+        title = file.getName();
+    }
+
+    int getSeriesCount() {
+        return metadata.size();
+    }
+
+    int getWidth() {
+        return getWidth(0);
+    }
+
+    int getHeight() {
+        return getHeight(0);
+    }
+
+    int getSlices() {
+        return getSlices(0);
+    }
+
+    int getWidth(int series) {
+        return (int) metadata.get(series).getAxisLength(Axes.X);
+    }
+
+    int getHeight(int series) {
+        return (int) metadata.get(series).getAxisLength(Axes.Y);
+    }
+
+    int getChannels(int series) {
+        return (int) Math.max(1, metadata.get(series).getAxisLength(Axes.CHANNEL));
+    }
+
+    int getSlices(int series) {
+        return (int) Math.max(1, metadata.get(series).getAxisLength(Axes.Z));
+    }
+
+    int getTimepoints(int series) {
+        return (int) Math.max(1, metadata.get(series).getAxisLength(Axes.TIME));
+    }
+
+    /**
+     * Pixel size of the first series from the metadata alone.
+     */
+    Calibration getCalibration() {
+        return getCalibration(0);
+    }
+
+    /**
+     * Pixel size from the metadata alone.
+     */
+    Calibration getCalibration(int series) {
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = scale(series, Axes.X);
+        calibration.pixelHeight = scale(series, Axes.Y);
+        calibration.pixelDepth = scale(series, Axes.Z);
+        CalibratedAxis x = axis(series, Axes.X);
+        if (x != null && x.unit() != null) {
+            calibration.setUnit(x.unit());
+        }
+        return calibration;
+    }
+
+    /**
+     * Reads the Z-stack of one channel (0-based) of the first series at the first time point.
+     */
+    ImagePlus loadChannel(int channel) throws IOException {
+        return loadChannel(0, 0, channel, new Rectangle(0, 0, getWidth(), getHeight()));
+    }
+
+    /**
+     * Reads one region of the Z-stack of one channel of the first series at the first time point.
+     */
+    ImagePlus loadChannel(int channel, Rectangle region) throws IOException {
+        return loadChannel(0, 0, channel, region);
+    }
+
+    /**
+     * Reads one region of the Z-stack of one channel at one time point of one series, all 0-based.
+     */
+    ImagePlus loadChannel(int series, int time, int channel, Rectangle region) throws IOException {
+        if (channel >= getChannels(series)) {
+            throw new IOException(title + " has no channel " + (channel + 1) + " in series " + (series + 1));
+        }
+        region = region.intersection(new Rectangle(0, 0, getWidth(series), getHeight(series)));
+        if (region.isEmpty()) {
+            throw new IOException("Region " + region + " is outside " + title);
+        }
+        ImageStack stack = new ImageStack(region.width, region.height);
+        for (int z = 0; z < getSlices(series); z++) {
+            stack.addSlice(readPlane(series, time, channel, z, region));
+        }
+        ImagePlus imp = new ImagePlus(title + " C" + (channel + 1), stack);
+        imp.setCalibration(getCalibration(series));
+        return imp;
+    }
+
+    /**
+     * Reads one Z plane of one channel shrunk to at most maxSize pixels across, each pixel the mean of a square of
+     * the plane. The plane is read a band of rows at a time, so it never has to fit in memory whole.
+     */
+    ImageProcessor loadOverview(int series, int time, int channel, int z, int maxSize) throws IOException {
+        if (channel >= getChannels(series)) {
+            throw new IOException(title + " has no channel " + (channel + 1) + " in series " + (series + 1));
+        }
+        int width = getWidth(series);
+        int height = getHeight(series);
+        int shrink = Math.max(1, (int) Math.ceil((double) Math.max(width, height) / maxSize));
+        int outWidth = (width + shrink - 1) / shrink;
+        int outHeight = (height + shrink - 1) / shrink;
+        float[] pixels = new float[outWidth * outHeight];
+        for (int oy = 0; oy < outHeight; oy++) {
+            int y0 = oy * shrink;
+            int rows = Math.min(shrink, height - y0);
+            ImageProcessor band = readPlane(series, time, channel, z, new Rectangle(0, y0, width, rows));
+            for (int ox = 0; ox < outWidth; ox++) {
+                int x0 = ox * shrink;
+                int columns = Math.min(shrink, width - x0);
+                double sum = 0;
+                for (int y = 0; y < rows; y++) {
+                    for (int x = x0; x < x0 + columns; x++) {
+                        sum += band.getf(x, y);
+                    }
+                }
+                pixels[oy * outWidth + ox] = (float) (sum / (rows * columns));
+            }
+        }
+        return new FloatProcessor(outWidth, outHeight, pixels);
+    }
+
+    private ImageProcessor readPlane(int series, int time, int channel, int z, Rectangle region)
+            throws IOException {
+
+        //Position of the plane along the non-planar axes (channel, Z, time... in file order)
+        ImageMetadata image = metadata.get(series);
+        List<CalibratedAxis> axes = image.getAxesNonPlanar();
+        long[] position = new long[axes.size()];
+        for (int i = 0; i < axes.size(); i++) {
+            AxisType type = axes.get(i).type();
+            position[i] = type == Axes.CHANNEL ? channel : type == Axes.Z ? z : type == Axes.TIME ? time : 0;
+        }
+        long planeIndex = FormatTools.positionToRaster(image.getAxesLengthsNonPlanar(), position);
+
+        Plane plane;
+        try {
+            plane = reader.openPlane(series, planeIndex, new FinalInterval(new long[]{region.x, region.y},
+                    new long[]{region.x + region.width - 1, region.y + region.height - 1}));
+        } catch (FormatException e) {
+            throw new IOException("Cannot read plane " + planeIndex + " of " + title + ": " + e.getMessage(), e);
+        }
+        return toProcessor(image, plane.getBytes(), region.width, region.height);
+    }
+
+    private static ImageProcessor toProcessor(ImageMetadata image, byte[] bytes, int width, int height) {
+        int pixelType = image.getPixelType();
+        Object data = Bytes.makeArray(bytes, FormatTools.getBytesPerPixel(pixelType),
+                FormatTools.isFloatingPoint(pixelType), image.isLittleEndian());
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                return new ByteProcessor(width, height, (byte[]) data);
+            case FormatTools.UINT16:
+                return new ShortProcessor(width, height, (short[]) data, null);
+            case FormatTools.FLOAT:
+                return new FloatProcessor(width, height, (float[]) data);
+            default:
+                //Signed, 32-bit integer and double data are converted to float
+                float[] pixels = new float[width * height];
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = (float) java.lang.reflect.Array.getDouble(data, i);
+                }
+                return new FloatProcessor(width, height, pixels);
+        }
+    }
+
+    private CalibratedAxis axis(int series, AxisType type) {
+        for (CalibratedAxis axis : metadata.get(series).getAxes()) {
+            if (axis.type() == type) {
+                return axis;
+            }
+        }
+        return null;
+    }
+
+    private double scale(int series, AxisType type) {
+        CalibratedAxis axis = axis(series, type);
+        if (axis == null) {
+            return 1;
+        }
+        double scale = axis.averageScale(0, 1);
+        return Double.isNaN(scale) || scale <= 0 ? 1 : scale;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import java.awt.Rectangle;
+import java.util.stream.IntStream;
+
+/**
+ * Exact 3D Euclidean distance from every voxel of a cell's bounding box to the nearest edge voxel of its nucleus mask.
+ * <p>
+ * Edge voxels are mask voxels with at least one of their 6 neighbours outside the mask. The transform is the
+ * separable lower-envelope algorithm of Felzenszwalb and Huttenlocher run along X, then Y, then Z with the pixel
+ * width, height and depth as spacing, and it also carries the index of the nearest edge voxel through each pass.
+ * Lines along each axis are independent and are spread over the available threads. Once built, the distance and
+ * nearest edge of any voxel are single array reads.
+ * </p>
+ */
+final class EdgeDistanceMap {
+
+    private static final float INF = Float.POSITIVE_INFINITY;
+
+    private final int x0;
+    private final int y0;
+    private final int w;
+    private final int h;
+    private final int d;
+    private final float[] distance;
+    private final int[] nearest;
+
+    private EdgeDistanceMap(Rectangle box, int d, float[] distance, int[] nearest) {
+        this.x0 = box.x;
+        this.y0 = box.y;
+        this.w = box.width;
+        this.h = box.height;
+        this.d = d;
+        this.distance = distance;
+        this.nearest = nearest;
+    }
+
+    /**
+     * Builds the map for one cell.
+     *
+     * @param masks  the per-slice nucleus masks
+     * @param cell   the cell index
+     * @param bounds XY region to cover, normally the bounds of the cell outline, which contains every mask pixel
+     */
+    static EdgeDistanceMap of(CellMasks masks, int cell, Rectangle bounds,
+                              double pixelWidth, double pixelHeight, double pixelDepth) {
+        Rectangle box = bounds.intersection(new Rectangle(0, 0, masks.getWidth(), masks.getHeight()));
+        int w = box.width;
+        int h = box.height;
+        int d = masks.getNSlices();
+        int plane = w * h;
+
+        //Mask voxels inside the box
+        boolean[] inside = new boolean[plane * d];
+        for (int z = 0; z < d; z++) {
+            for (int p : masks.getPixels(cell, z)) {
+                int x = p % masks.getWidth() - box.x;
+                int y = p / masks.getWidth() - box.y;
+                if (x >= 0 && y >= 0 && x < w && y < h) {
+                    inside[z * plane + y * w + x] = true;
+                }
+            }
+        }
+
+        //Edge voxels are the sites, the squared distance there is 0
+        float[] distance = new float[plane * d];
+        int[] nearest = new int[plane * d];
+        for (int z = 0; z < d; z++) {
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int i = z * plane + y * w + x;
+                    boolean edge = inside[i] && (x == 0 || !inside[i - 1] || x == w - 1 || !inside[i + 1]
+                            || y == 0 || !inside[i - w] || y == h - 1 || !inside[i + w]
+                            || z == 0 || !inside[i - plane] || z == d - 1 || !inside[i + plane]);
+                    distance[i] = edge ? 0 : INF;
+                    nearest[i] = edge ? i : -1;
+                }
+            }
+        }
+
+        //X lines
+        IntStream.range(0, h * d).parallel().forEach(line ->
+                transformLine(distance, nearest, (line / h) * plane + (line % h) * w, 1, w, pixelWidth));
+        //Y lines
+        IntStream.range(0, w * d).parallel().forEach(line ->
+                transformLine(distance, nearest, (line / w) * plane + line % w, w, h, pixelHeight));
+        //Z lines
+        IntStream.range(0, plane).parallel().forEach(line ->
+                transformLine(distance, nearest, line, plane, d, pixelDepth));
+
+        for (int i = 0; i < distance.length; i++) {
+            distance[i] = (float) Math.sqrt(distance[i]);
+        }
+        return new EdgeDistanceMap(box, d, distance, nearest);
+    }
+
+    //1D squared distance transform of one line in place, carrying the nearest site index along
+    private static void transformLine(float[] distance, int[] nearest, int offset, int step, int n, double spacing) {
+        float[] f = new float[n];
+        int[] site = new int[n];
+        for (int i = 0; i < n; i++) {
+            f[i] = distance[offset + i * step];
+            site[i] = nearest[offset + i * step];
+        }
+
+        //Lower envelope of the parabolas rooted at every finite sample
+        double s2 = spacing * spacing;
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+        int k = -1;
+        for (int q = 0; q < n; q++) {
+            if (f[q] == INF) {
+                continue;
+            }
+            double s = 0;
+            while (k >= 0) {
+                int r = v[k];
+                s = ((f[q] + s2 * q * q) - (f[r] + s2 * r * r)) / (2 * s2 * (q - r));
+                if (s > z[k]) {
+                    break;
+                }
+                k--;
+            }
+            k++;
+            v[k] = q;
+            z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        if (k < 0) {
+            return;
+        }
+
+        k = 0;
+        for (int p = 0; p < n; p++) {
+            while (z[k + 1] < p) {
+                k++;
+            }
+            int r = v[k];
+            distance[offset + p * step] = (float) (s2 * (p - r) * (p - r) + f[r]);
+            nearest[offset + p * step] = site[r];
+        }
+    }
+
+    private int index(int x, int y, int z) {
+        x -= x0;
+        y -= y0;
+        if (x < 0 || y < 0 || z < 0 || x >= w || y >= h || z >= d) {
+            return -1;
+        }
+        return z * w * h + y * w + x;
+    }
+
+    /**
+     * Calibrated distance from (x, y, z) to the nearest edge voxel, NaN outside the box or if the mask is empty.
+     */
+    double getDistance(int x, int y, int z) {
+        int i = index(x, y, z);
+        return i < 0 || nearest[i] < 0 ? Double.NaN : distance[i];
+    }
+
+    /**
+     * Image coordinates {x, y, z} of the nearest edge voxel to (x, y, z), or null if there is none.
+     */
+    int[] getNearestEdge(int x, int y, int z) {
+        int i = index(x, y, z);
+        if (i < 0 || nearest[i] < 0) {
+            return null;
+        }
+        int site = nearest[i];
+        int plane = w * h;
+        return new int[]{x0 + site % plane % w, y0 + site % plane / w, site / plane};
+    }
+}
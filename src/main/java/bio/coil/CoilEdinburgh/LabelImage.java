@@ -0,0 +1,143 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Integer cell label image, as produced by Cellpose.
+ * <p>
+ * Labels are renumbered 1..n in increasing order of their original value, so cell i (0-based, as used for the
+ * outline arrays and the results) always has label i+1 and 0 is background. Finding the cell under a pixel is a
+ * single array read.
+ * </p>
+ */
+final class LabelImage {
+
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final int count;
+
+    LabelImage(int width, int height, int[] labels, int count) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.count = count;
+    }
+
+    /**
+     * Reads a label mask, any pixel value above zero is a cell.
+     */
+    static LabelImage fromMask(ImagePlus mask) {
+        ImageProcessor ip = mask.getProcessor();
+        int[] labels = new int[ip.getWidth() * ip.getHeight()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = (int) ip.getf(i);
+        }
+        return fromLabels(ip.getWidth(), ip.getHeight(), labels);
+    }
+
+    /**
+     * Wraps raw labels, renumbering them in place, any value above zero is a cell.
+     */
+    static LabelImage fromLabels(int width, int height, int[] labels) {
+        int max = 0;
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = Math.max(0, labels[i]);
+            max = Math.max(max, labels[i]);
+        }
+
+        //Close any gaps in the numbering
+        int[] remap = new int[max + 1];
+        for (int label : labels) {
+            remap[label] = 1;
+        }
+        int count = 0;
+        for (int label = 1; label <= max; label++) {
+            remap[label] = remap[label] == 0 ? 0 : ++count;
+        }
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = remap[labels[i]];
+        }
+        return new LabelImage(width, height, labels, count);
+    }
+
+    /**
+     * An image with no cells.
+     */
+    static LabelImage empty(int width, int height) {
+        return new LabelImage(width, height, new int[width * height], 0);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Label per pixel (y*width+x), 0 for background. This is the backing array, do not modify it.
+     */
+    int[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * The label at (x, y), 0 for background or outside the image.
+     */
+    int getLabel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        return labels[y * width + x];
+    }
+
+    /**
+     * Traced outline of every cell, index i holds label i+1.
+     * <p>
+     * One scan finds the first pixel of each label and the outline is then traced from there, so the cost is the
+     * image size plus the total perimeter. A label split into several pieces gives the outline of its first piece.
+     * </p>
+     */
+    Roi[] getOutlines() {
+        int[] start = new int[count + 1];
+        Arrays.fill(start, -1);
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != 0 && start[labels[i]] < 0) {
+                start[labels[i]] = i;
+            }
+        }
+        FloatProcessor ip = new FloatProcessor(width, height);
+        for (int i = 0; i < labels.length; i++) {
+            ip.setf(i, labels[i]);
+        }
+        Wand wand = new Wand(ip);
+        Roi[] outlines = new Roi[count];
+        for (int label = 1; label <= count; label++) {
+            wand.autoOutline(start[label] % width, start[label] / width, label, label, Wand.LEGACY_MODE);
+            outlines[label - 1] = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints),
+                    Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints, Roi.TRACED_ROI);
+        }
+        return outlines;
+    }
+}
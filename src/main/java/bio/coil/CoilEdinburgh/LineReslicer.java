@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Samples XZ sections of a stack along straight XY lines, the same view as Reslice [/]... on a line selection.
+ * <p>
+ * Values are bilinear in XY and linear in Z, and the output is stretched in Z so its pixels are square. The slice
+ * processors are fetched once, so sampling many lines only reads the stack and writes straight into the processor
+ * handed in.
+ * </p>
+ */
+final class LineReslicer {
+
+    private final ImageProcessor[] slices;
+    private final int height;
+
+    /**
+     * @param imp    the stack to sample
+     * @param zScale pixel depth divided by pixel width
+     */
+    LineReslicer(ImagePlus imp, double zScale) {
+        ImageStack stack = imp.getStack();
+        slices = new ImageProcessor[stack.getSize()];
+        for (int z = 0; z < slices.length; z++) {
+            slices[z] = stack.getProcessor(z + 1);
+        }
+        height = Math.max(1, (int) Math.round(slices.length * zScale));
+    }
+
+    /**
+     * Height of every section, the number of slices stretched to square pixels.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Number of samples along the line, one per pixel of length.
+     */
+    static int getLength(double x1, double y1, double x2, double y2) {
+        return Math.max(1, (int) Math.round(Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1))));
+    }
+
+    /**
+     * Writes the section along the line into the first getLength() columns of out, which must be getHeight() tall.
+     */
+    void sample(double x1, double y1, double x2, double y2, ImageProcessor out) {
+        int n = getLength(x1, y1, x2, y2);
+        double xInc = (x2 - x1) / n;
+        double yInc = (y2 - y1) / n;
+        double[] column = new double[slices.length];
+        double zStep = height > 1 ? (slices.length - 1) / (double) (height - 1) : 0;
+        for (int u = 0; u < n && u < out.getWidth(); u++) {
+            double x = x1 + u * xInc;
+            double y = y1 + u * yInc;
+
+            //Bilinear value at this point in every slice
+            for (int z = 0; z < slices.length; z++) {
+                column[z] = slices[z].getInterpolatedValue(x, y);
+            }
+
+            //Linear in Z between the two nearest slices
+            for (int v = 0; v < height; v++) {
+                double z = v * zStep;
+                int z0 = (int) z;
+                int z1 = Math.min(z0 + 1, slices.length - 1);
+                double fraction = z - z0;
+                out.putPixelValue(u, v, column[z0] + fraction * (column[z1] - column[z0]));
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an image as OME-Zarr (OME-NGFF 0.4, Zarr v2), one resolution level, with no library beyond the JDK.
+ * <p>
+ * The array has the axes t, c, z, y, x and is cut into chunks of one plane of chunk x chunk pixels, stored
+ * little-endian and zlib compressed at 0/t/c/z/y/x. Chunks at the right and bottom edges are padded with zeros, as
+ * Zarr expects. The scale of z, y and x comes from the calibration, in micrometres.
+ * </p>
+ */
+final class OmeZarrWriter {
+
+    private OmeZarrWriter() {
+    }
+
+    static void write(ImagePlus imp, String path, int chunk) throws IOException {
+        String dtype;
+        switch (imp.getBitDepth()) {
+            case 8:
+                dtype = "|u1";
+                break;
+            case 16:
+                dtype = "<u2";
+                break;
+            case 32:
+                dtype = "<f4";
+                break;
+            default:
+                throw new IOException("RGB images cannot be written as OME-Zarr");
+        }
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int channels = imp.getNChannels();
+        int slices = imp.getNSlices();
+        int frames = imp.getNFrames();
+        int chunkWidth = Math.min(chunk, width);
+        int chunkHeight = Math.min(chunk, height);
+
+        File root = new File(path);
+        File array = new File(root, "0");
+        if (!array.isDirectory() && !array.mkdirs()) {
+            throw new IOException("Cannot create " + array);
+        }
+        Calibration calibration = imp.getCalibration();
+        writeText(new File(root, ".zgroup"), "{\"zarr_format\": 2}\n");
+        writeText(new File(root, ".zattrs"), String.format(Locale.ROOT, "{\"multiscales\": [{\"version\": \"0.4\", "
+                        + "\"name\": %s, \"axes\": [{\"name\": \"t\", \"type\": \"time\"}, "
+                        + "{\"name\": \"c\", \"type\": \"channel\"}, "
+                        + "{\"name\": \"z\", \"type\": \"space\", \"unit\": \"micrometer\"}, "
+                        + "{\"name\": \"y\", \"type\": \"space\", \"unit\": \"micrometer\"}, "
+                        + "{\"name\": \"x\", \"type\": \"space\", \"unit\": \"micrometer\"}], "
+                        + "\"datasets\": [{\"path\": \"0\", \"coordinateTransformations\": "
+                        + "[{\"type\": \"scale\", \"scale\": [1, 1, %s, %s, %s]}]}]}]}\n",
+                quote(imp.getTitle()), calibration.pixelDepth, calibration.pixelHeight, calibration.pixelWidth));
+        writeText(new File(array, ".zarray"), String.format(Locale.ROOT, "{\"zarr_format\": 2, "
+                        + "\"shape\": [%d, %d, %d, %d, %d], \"chunks\": [1, 1, 1, %d, %d], \"dtype\": \"%s\", "
+                        + "\"compressor\": {\"id\": \"zlib\", \"level\": 6}, \"fill_value\": 0, \"order\": \"C\", "
+                        + "\"filters\": null, \"dimension_separator\": \"/\"}\n",
+                frames, channels, slices, height, width, chunkHeight, chunkWidth, dtype));
+
+        ImageStack stack = imp.getStack();
+        int bytesPerPixel = imp.getBytesPerPixel();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkWidth * chunkHeight * bytesPerPixel)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = 0; t < frames; t++) {
+            for (int c = 0; c < channels; c++) {
+                for (int z = 0; z < slices; z++) {
+                    Object pixels = stack.getPixels(imp.getStackIndex(c + 1, z + 1, t + 1));
+                    for (int cy = 0; cy * chunkHeight < height; cy++) {
+                        for (int cx = 0; cx * chunkWidth < width; cx++) {
+                            fillChunk(buffer, pixels, width, height, cx * chunkWidth, cy * chunkHeight,
+                                    chunkWidth, chunkHeight);
+                            File file = new File(array, t + "/" + c + "/" + z + "/" + cy + "/" + cx);
+                            file.getParentFile().mkdirs();
+                            try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(file))) {
+                                out.write(buffer.array(), 0, buffer.capacity());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void fillChunk(ByteBuffer buffer, Object pixels, int width, int height, int x0, int y0,
+                                  int chunkWidth, int chunkHeight) {
+        buffer.clear();
+        for (int y = y0; y < y0 + chunkHeight; y++) {
+            for (int x = x0; x < x0 + chunkWidth; x++) {
+                boolean inside = x < width && y < height;
+                int i = y * width + x;
+                if (pixels instanceof byte[]) {
+                    buffer.put(inside ? ((byte[]) pixels)[i] : 0);
+                } else if (pixels instanceof short[]) {
+                    buffer.putShort(inside ? ((short[]) pixels)[i] : 0);
+                } else {
+                    buffer.putFloat(inside ? ((float[]) pixels)[i] : 0);
+                }
+            }
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(text);
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the output images on background threads so the pipeline can get on with the next stack or file.
+ * <p>
+ * Images waiting to be written are held in memory, so {@link #write} blocks once they add up to the budget (a quarter
+ * of the heap, at most 1 GB) until earlier ones are on disk. One writer is shared by every run in the JVM; the writer
+ * threads stop when idle, and {@link #flush()} waits for everything queued so far. An image must not be changed once
+ * it is handed over. Failures are logged, not thrown, as the results files do not depend on the images.
+ * </p>
+ * <p>
+ * Besides ImageJ's uncompressed TIFF, images can be written as OME-TIFF through Bio-Formats with LZW or zlib
+ * compression in 512 pixel tiles, or as OME-Zarr with zlib compressed 512 pixel chunks ({@link OmeZarrWriter}).
+ * </p>
+ */
+final class OutputWriter {
+
+    static final String TIFF = "TIFF (uncompressed)";
+    static final String TIFF_LZW = "OME-TIFF (LZW, tiled)";
+    static final String TIFF_ZLIB = "OME-TIFF (zlib, tiled)";
+    static final String OME_ZARR = "OME-Zarr (zlib, chunked)";
+
+    static final int TILE = 512;
+
+    private static final int THREADS = 2;
+
+    private static OutputWriter shared;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore budget;
+    private final int budgetKB;
+    private int pending;
+
+    private OutputWriter(long budgetBytes) {
+        budgetKB = (int) Math.max(1, budgetBytes / 1024);
+        budget = new Semaphore(budgetKB);
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "Shelagh_FISH output");
+            //Not a daemon, so a JVM that is shutting down still finishes writing
+            thread.setDaemon(false);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized OutputWriter shared() {
+        if (shared == null) {
+            shared = new OutputWriter(Math.min(1L << 30, Runtime.getRuntime().maxMemory() / 4));
+        }
+        return shared;
+    }
+
+    /**
+     * Queues an image to be written in the given format, the extension is added to path. Blocks while the images
+     * already queued fill the budget. The returned future completes once the image is on disk, or exceptionally if it
+     * could not be written.
+     */
+    CompletableFuture<Void> write(ImagePlus imp, String path, String format) {
+        long bytes = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * imp.getBytesPerPixel();
+        int kb = (int) Math.min(budgetKB, Math.max(1, bytes / 1024));
+        budget.acquireUninterruptibly(kb);
+        synchronized (this) {
+            pending++;
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writeNow(imp, path, format);
+            } catch (IOException | RuntimeException e) {
+                IJ.log("Could not write " + path + ": " + e.getMessage());
+                throw new CompletionException(e);
+            } finally {
+                budget.release(kb);
+                synchronized (this) {
+                    pending--;
+                    notifyAll();
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits until every image queued so far has been written.
+     */
+    synchronized void flush() {
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes an image straight away on this thread, returns the file written.
+     */
+    static String writeNow(ImagePlus imp, String path, String format) throws IOException {
+        if (TIFF_LZW.equals(format) || TIFF_ZLIB.equals(format)) {
+            path += ".ome.tif";
+            writeOmeTiff(imp, path, TIFF_LZW.equals(format) ? TiffWriter.COMPRESSION_LZW : TiffWriter.COMPRESSION_ZLIB);
+        } else if (OME_ZARR.equals(format)) {
+            path += ".ome.zarr";
+            OmeZarrWriter.write(imp, path, TILE);
+        } else {
+            path += ".tif";
+            if (!new FileSaver(imp).saveAsTiff(path)) {
+                throw new IOException("ImageJ could not save " + path);
+            }
+        }
+        return path;
+    }
+
+    private static void writeOmeTiff(ImagePlus imp, String path, String compression) throws IOException {
+        int pixelType;
+        switch (imp.getBitDepth()) {
+            case 8:
+                pixelType = FormatTools.UINT8;
+                break;
+            case 16:
+                pixelType = FormatTools.UINT16;
+                break;
+            case 32:
+                pixelType = FormatTools.FLOAT;
+                break;
+            default:
+                throw new IOException("RGB images can only be written as " + TIFF);
+        }
+
+        //Planes in ImageJ's stack order, channel fastest
+        IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(metadata, 0, imp.getTitle(), false, "XYCZT",
+                FormatTools.getPixelTypeString(pixelType), imp.getWidth(), imp.getHeight(), imp.getNSlices(),
+                imp.getNChannels(), imp.getNFrames(), 1);
+        Calibration calibration = imp.getCalibration();
+        metadata.setPixelsPhysicalSizeX(FormatTools.getPhysicalSizeX(calibration.pixelWidth), 0);
+        metadata.setPixelsPhysicalSizeY(FormatTools.getPhysicalSizeY(calibration.pixelHeight), 0);
+        metadata.setPixelsPhysicalSizeZ(FormatTools.getPhysicalSizeZ(calibration.pixelDepth), 0);
+
+        //The writer would add to an existing file
+        new File(path).delete();
+        ImageStack stack = imp.getStack();
+        long bytes = (long) imp.getWidth() * imp.getHeight() * stack.getSize() * imp.getBytesPerPixel();
+        try (OMETiffWriter writer = new OMETiffWriter()) {
+            writer.setMetadataRetrieve(metadata);
+            writer.setCompression(compression);
+            writer.setBigTiff(bytes > Integer.MAX_VALUE / 2);
+            writer.setInterleaved(false);
+            if (imp.getWidth() > TILE && imp.getHeight() > TILE) {
+                writer.setTileSizeX(TILE);
+                writer.setTileSizeY(TILE);
+            }
+            writer.setId(path);
+            for (int i = 0; i < stack.getSize(); i++) {
+                writer.saveBytes(i, toBytes(stack.getPixels(i + 1)));
+            }
+        } catch (FormatException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    //Big-endian bytes, as declared in the metadata
+    private static byte[] toBytes(Object pixels) {
+        if (pixels instanceof short[]) {
+            return DataTools.shortsToBytes((short[]) pixels, false);
+        }
+        if (pixels instanceof float[]) {
+            return DataTools.floatsToBytes((float[]) pixels, false);
+        }
+        return (byte[]) pixels;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of a run as typed records, one per spot and one per cell, each with the series, time point and
+ * tolerance it came from.
+ * <p>
+ * Each cell's geometry (bounding box in micrometres and centroid in pixels) is worked out once however many spots it
+ * has. Every spot is kept: spots outside any cell have cell -1 and spots without a distance have NaN. The rows of
+ * Distances.csv are a view of these records, {@link #getCsvRows()} gives the spots that have a distance in the
+ * layout of {@link Shelagh_FISH#RESULTS_HEADER}.
+ * </p>
+ */
+final class ResultRecords {
+
+    //Columns of a spot record, cells are numbered from 0 as in Distances.csv
+    static final int SPOT_SERIES = 0;
+    static final int SPOT_TIME = 1;
+    static final int SPOT_TOLERANCE = 2;
+    static final int SPOT = 3;
+    static final int SPOT_CELL = 4;
+    static final int SPOT_X = 5;
+    static final int SPOT_Y = 6;
+    static final int SPOT_Z = 7;
+    static final int SPOT_DISTANCE = 8;
+    static final int SPOT_FISH = 9;
+    static final int SPOT_DAPI = 10;
+
+    //Columns of a cell record
+    static final int CELL_SERIES = 0;
+    static final int CELL_TIME = 1;
+    static final int CELL = 2;
+    static final int CELL_WIDTH = 3;
+    static final int CELL_HEIGHT = 4;
+    static final int CELL_CENTROID_X = 5;
+    static final int CELL_CENTROID_Y = 6;
+    static final int CELL_DAPI_MAX = 7;
+    static final int CELL_DAPI_MIN = 8;
+    static final int CELL_DAPI_MEAN = 9;
+    static final int CELL_DAPI_MEDIAN = 10;
+    static final int CELL_PIXEL_WIDTH = 11;
+    static final int CELL_PIXEL_HEIGHT = 12;
+    static final int CELL_PIXEL_DEPTH = 13;
+
+    private final String file;
+    private final double[][] spots;
+    private final double[][] cells;
+
+    ResultRecords(String file, double[][] spots, double[][] cells) {
+        this.file = file;
+        this.spots = spots;
+        this.cells = cells;
+    }
+
+    /**
+     * Records of one stack from the pipeline's tables.
+     *
+     * @param series    0-based, stored 1-based as in Distances.csv
+     * @param timepoint 0-based, stored 1-based
+     * @param xyzCell   spots as {x, y, z, cell label}
+     * @param xyzInt    spots as {x, y, z, FISH intensity, DAPI intensity}
+     * @param distances in the layout of findDistance, a spot without a line to the edge has distances[j][1] == 0
+     * @param dapiStats {max, min, mean, median} per cell
+     */
+    static ResultRecords of(String file, int series, int timepoint, double tolerance, double[][] xyzCell,
+                            double[][] xyzInt, double[][] distances, Roi[] outlines, double[][] dapiStats,
+                            double pixelWidth, double pixelHeight, double pixelDepth) {
+        double[][] cells = new double[outlines.length][];
+        for (int c = 0; c < outlines.length; c++) {
+            Rectangle bounds = outlines[c].getBounds();
+            double[] centroid = outlines[c].getContourCentroid();
+            cells[c] = new double[]{series + 1, timepoint + 1, c, bounds.width * pixelWidth,
+                    bounds.height * pixelHeight, centroid[0], centroid[1], dapiStats[c][0], dapiStats[c][1],
+                    dapiStats[c][2], dapiStats[c][3], pixelWidth, pixelHeight, pixelDepth};
+        }
+        double[][] spots = new double[distances.length][];
+        for (int j = 0; j < distances.length; j++) {
+            spots[j] = new double[]{series + 1, timepoint + 1, tolerance, j, xyzCell[j][3] - 1, xyzCell[j][0],
+                    xyzCell[j][1], xyzCell[j][2], distances[j][1] != 0 ? distances[j][7] : Double.NaN,
+                    xyzInt[j][3], xyzInt[j][4]};
+        }
+        return new ResultRecords(file, spots, cells);
+    }
+
+    /**
+     * The records of several stacks of one file, in order.
+     */
+    static ResultRecords concat(String file, List<ResultRecords> parts) {
+        List<double[]> spots = new ArrayList<>();
+        List<double[]> cells = new ArrayList<>();
+        for (ResultRecords part : parts) {
+            spots.addAll(Arrays.asList(part.spots));
+            cells.addAll(Arrays.asList(part.cells));
+        }
+        return new ResultRecords(file, spots.toArray(new double[0][]), cells.toArray(new double[0][]));
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    double[][] getSpots() {
+        return spots;
+    }
+
+    double[][] getCells() {
+        return cells;
+    }
+
+    /**
+     * The rows of Distances.csv: spots with a distance, with their cell's width, height and DAPI stats.
+     */
+    List<String> getCsvRows() {
+        return csvRows(false);
+    }
+
+    /**
+     * As {@link #getCsvRows()} with the series and time point in front, as in {@link Shelagh_FISH#SERIES_HEADER}.
+     */
+    List<String> getSeriesCsvRows() {
+        return csvRows(true);
+    }
+
+    private List<String> csvRows(boolean withSeries) {
+        Map<String, double[]> cellsByKey = new HashMap<>();
+        for (double[] cell : cells) {
+            cellsByKey.put(key(cell[CELL_SERIES], cell[CELL_TIME], cell[CELL]), cell);
+        }
+        List<String> rows = new ArrayList<>();
+        for (double[] spot : spots) {
+            if (Double.isNaN(spot[SPOT_DISTANCE])) {
+                continue;
+            }
+            double[] cell = cellsByKey.get(key(spot[SPOT_SERIES], spot[SPOT_TIME], spot[SPOT_CELL]));
+            String row = (int) spot[SPOT] + "," + (int) spot[SPOT_CELL] + "," + cell[CELL_WIDTH] + ","
+                    + cell[CELL_HEIGHT] + "," + spot[SPOT_DISTANCE] + "," + spot[SPOT_DAPI] + "," + spot[SPOT_FISH]
+                    + "," + cell[CELL_DAPI_MAX] + "," + cell[CELL_DAPI_MIN] + "," + cell[CELL_DAPI_MEAN] + ","
+                    + cell[CELL_DAPI_MEDIAN];
+            rows.add(withSeries ? (int) spot[SPOT_SERIES] + "," + (int) spot[SPOT_TIME] + "," + row : row);
+        }
+        return rows;
+    }
+
+    private static String key(double series, double time, double cell) {
+        return (int) series + "," + (int) time + "," + (int) cell;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spot and cell records in Arrow IPC files (Spots.arrow and Cells.arrow), which pandas, polars, R and DuckDB read
+ * directly and which any number of files can be appended to.
+ * <p>
+ * Every call to {@link #append} adds one record batch to each file, so a batch streams each input file's records as
+ * it finishes and only one file's records are in memory. Series, time point, spot and cell are 32-bit integers, the
+ * file name is text and everything else is a double, in pixels for positions and micrometres for sizes. A spot
+ * without a distance has a null distance. The settings of the run are kept in the schema metadata.
+ * </p>
+ */
+final class ResultsStore implements Closeable {
+
+    static final String SPOTS = "Spots";
+    static final String CELLS = "Cells";
+    static final String EXTENSION = ".arrow";
+
+    private static final ArrowType TEXT = ArrowType.Utf8.INSTANCE;
+    private static final ArrowType INT = new ArrowType.Int(32, true);
+    private static final ArrowType DOUBLE = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+
+    //After the file name, in the order of the ResultRecords columns
+    private static final List<Field> SPOT_FIELDS = Arrays.asList(field("file", TEXT, false),
+            field("series", INT, false), field("time", INT, false), field("tolerance", DOUBLE, false),
+            field("spot", INT, false), field("cell", INT, false), field("x", DOUBLE, false),
+            field("y", DOUBLE, false), field("z", DOUBLE, false), field("distance", DOUBLE, true),
+            field("intensity_fish", DOUBLE, false), field("intensity_dapi", DOUBLE, false));
+    private static final List<Field> CELL_FIELDS = Arrays.asList(field("file", TEXT, false),
+            field("series", INT, false), field("time", INT, false), field("cell", INT, false),
+            field("width_um", DOUBLE, false), field("height_um", DOUBLE, false), field("centroid_x", DOUBLE, false),
+            field("centroid_y", DOUBLE, false), field("dapi_max", DOUBLE, false), field("dapi_min", DOUBLE, false),
+            field("dapi_mean", DOUBLE, false), field("dapi_median", DOUBLE, false),
+            field("pixel_width_um", DOUBLE, false), field("pixel_height_um", DOUBLE, false),
+            field("pixel_depth_um", DOUBLE, false));
+
+    private final BufferAllocator allocator;
+    private final VectorSchemaRoot spotRoot;
+    private final VectorSchemaRoot cellRoot;
+    private final FileOutputStream spotOut;
+    private final FileOutputStream cellOut;
+    private final ArrowFileWriter spotWriter;
+    private final ArrowFileWriter cellWriter;
+
+    private ResultsStore(File spotFile, File cellFile, Map<String, String> metadata) throws IOException {
+        allocator = new RootAllocator();
+        spotRoot = VectorSchemaRoot.create(new Schema(SPOT_FIELDS, metadata), allocator);
+        cellRoot = VectorSchemaRoot.create(new Schema(CELL_FIELDS, metadata), allocator);
+        spotOut = new FileOutputStream(spotFile);
+        cellOut = new FileOutputStream(cellFile);
+        spotWriter = new ArrowFileWriter(spotRoot, null, spotOut.getChannel());
+        cellWriter = new ArrowFileWriter(cellRoot, null, cellOut.getChannel());
+        spotWriter.start();
+        cellWriter.start();
+    }
+
+    /**
+     * Starts new spot and cell files, replacing any that are there.
+     *
+     * @param settings written as text to the schema metadata of both files
+     */
+    static ResultsStore create(File spotFile, File cellFile, Map<String, ?> settings) throws IOException {
+        Map<String, String> metadata = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : settings.entrySet()) {
+            metadata.put(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return new ResultsStore(spotFile, cellFile, metadata);
+    }
+
+    /**
+     * Adds the records of one file as a record batch to each of the files.
+     */
+    synchronized void append(ResultRecords records) throws IOException {
+        fill(spotRoot, records.getFile(), records.getSpots());
+        spotWriter.writeBatch();
+        fill(cellRoot, records.getFile(), records.getCells());
+        cellWriter.writeBatch();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            spotWriter.end();
+            cellWriter.end();
+        } finally {
+            spotWriter.close();
+            cellWriter.close();
+            spotOut.close();
+            cellOut.close();
+            spotRoot.close();
+            cellRoot.close();
+            allocator.close();
+        }
+    }
+
+    /**
+     * Reads back every record of a spot and a cell file written by a store, e.g. for a stack a previous run finished.
+     */
+    static ResultRecords read(String file, File spotFile, File cellFile) throws IOException {
+        return new ResultRecords(file, readTable(spotFile), readTable(cellFile));
+    }
+
+    //Every column but the file name
+    private static double[][] readTable(File table) throws IOException {
+        List<double[]> rows = new ArrayList<>();
+        try (BufferAllocator allocator = new RootAllocator();
+             FileInputStream in = new FileInputStream(table);
+             ArrowFileReader reader = new ArrowFileReader(in.getChannel(), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                List<FieldVector> vectors = root.getFieldVectors();
+                for (int r = 0; r < root.getRowCount(); r++) {
+                    double[] row = new double[vectors.size() - 1];
+                    for (int c = 1; c < vectors.size(); c++) {
+                        FieldVector vector = vectors.get(c);
+                        if (vector.isNull(r)) {
+                            row[c - 1] = Double.NaN;
+                        } else if (vector instanceof IntVector) {
+                            row[c - 1] = ((IntVector) vector).get(r);
+                        } else {
+                            row[c - 1] = ((Float8Vector) vector).get(r);
+                        }
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        return rows.toArray(new double[0][]);
+    }
+
+    private static void fill(VectorSchemaRoot root, String file, double[][] rows) {
+        root.allocateNew();
+        byte[] name = file.getBytes(StandardCharsets.UTF_8);
+        List<FieldVector> vectors = root.getFieldVectors();
+        for (int r = 0; r < rows.length; r++) {
+            ((VarCharVector) vectors.get(0)).setSafe(r, name);
+            for (int c = 1; c < vectors.size(); c++) {
+                double value = rows[r][c - 1];
+                FieldVector vector = vectors.get(c);
+                if (vector instanceof IntVector) {
+                    ((IntVector) vector).setSafe(r, (int) value);
+                } else if (Double.isNaN(value) && vector.getField().isNullable()) {
+                    ((Float8Vector) vector).setNull(r);
+                } else {
+                    ((Float8Vector) vector).setSafe(r, value);
+                }
+            }
+        }
+        root.setRowCount(rows.length);
+    }
+
+    private static Field field(String name, ArrowType type, boolean nullable) {
+        return new Field(name, nullable ? FieldType.nullable(type) : FieldType.notNullable(type), null);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * What a previous run of the same file with the same settings already finished, kept in manifest.properties in the
+ * output folder so an interrupted batch can pick up where it stopped.
+ * <p>
+ * The manifest holds a fingerprint of the input file, the settings and the time each stage finished. If either the
+ * fingerprint or the settings differ from this run's the stages are forgotten and everything is redone. Intermediates
+ * that are costly to remake, such as the spot table and the cell labels, are saved next to the manifest when their
+ * stage finishes and read back instead of redoing it. The manifest is rewritten through a temporary file after every
+ * stage, so a run killed part way leaves it as it was after the last finished stage.
+ * </p>
+ */
+final class RunManifest {
+
+    static final String SPOTS = "spots";
+    static final String SEGMENTATION = "segmentation";
+    static final String RESULTS = "results";
+    //Spots.arrow and Cells.arrow were written with the results, which are otherwise only in Distances.csv
+    static final String RECORDS = "records";
+    static final String IMAGES = "images";
+
+    private static final String NAME = "manifest.properties";
+    private static final String STAGE = "stage.";
+    private static final String TABLE_SUFFIX = ".table.gz";
+
+    //Bytes hashed from the start, middle and end of the input file
+    private static final int SAMPLE = 1 << 20;
+
+    private final File directory;
+    private final Properties properties;
+
+    private RunManifest(File directory, Properties properties) {
+        this.directory = directory;
+        this.properties = properties;
+    }
+
+    /**
+     * Reads the manifest in directory, or starts a new one if there is none or it was made for another file or other
+     * settings.
+     */
+    static RunManifest open(File directory, String fingerprint, Map<String, ?> settings) {
+        String parameters = describe(settings);
+        Properties properties = new Properties();
+        File file = new File(directory, NAME);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                IJ.log("Ignoring unreadable " + file + ": " + e.getMessage());
+                properties.clear();
+            }
+        }
+        if (!fingerprint.equals(properties.getProperty("fingerprint"))
+                || !parameters.equals(properties.getProperty("parameters"))) {
+            properties.clear();
+            properties.setProperty("fingerprint", fingerprint);
+            properties.setProperty("parameters", parameters);
+        }
+        return new RunManifest(directory, properties);
+    }
+
+    /**
+     * SHA-256 of the file's size and of up to 1 MB from its start, middle and end. Any rewrite of an image changes
+     * its header, its size or its pixels there, and large plates are not read through a second time.
+     */
+    static String fingerprint(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            digest.update(ByteBuffer.allocate(8).putLong(length).array());
+            byte[] buffer = new byte[(int) Math.min(SAMPLE, length)];
+            for (long offset : new long[]{0, (length - buffer.length) / 2, length - buffer.length}) {
+                in.seek(offset);
+                in.readFully(buffer);
+                digest.update(buffer);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    synchronized boolean isDone(String stage) {
+        return properties.containsKey(STAGE + stage);
+    }
+
+    /**
+     * True once the results are written and the images are on disk.
+     */
+    boolean isComplete() {
+        return isDone(RESULTS) && isDone(IMAGES);
+    }
+
+    synchronized void markDone(String stage) {
+        properties.setProperty(STAGE + stage, Instant.now().toString());
+        File file = new File(directory, NAME);
+        try {
+            File temp = File.createTempFile(NAME, ".tmp", directory);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "Shelagh_FISH run manifest");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            IJ.log("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves a table of doubles, e.g. the spots, to be read back by a later run.
+     */
+    void saveTable(String name, double[][] table) {
+        File file = new File(directory, name + TABLE_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))))) {
+            out.writeInt(table.length);
+            for (double[] row : table) {
+                out.writeInt(row.length);
+                for (double value : row) {
+                    out.writeDouble(value);
+                }
+            }
+        } catch (IOException e) {
+            IJ.log("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a table saved by {@link #saveTable}, or null if it is missing or cannot be read.
+     */
+    double[][] loadTable(String name) {
+        File file = new File(directory, name + TABLE_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            double[][] table = new double[in.readInt()][];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = new double[in.readInt()];
+                for (int j = 0; j < table[i].length; j++) {
+                    table[i][j] = in.readDouble();
+                }
+            }
+            return table;
+        } catch (IOException e) {
+            IJ.log("Ignoring unreadable " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * A store for the cell labels of this run, next to the manifest.
+     */
+    SegmentationCache getLabelStore() {
+        return new SegmentationCache(directory, Long.MAX_VALUE);
+    }
+
+    //Every setting in key order, so the same settings always read the same
+    private static String describe(Map<String, ?> settings) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, ?> entry : new TreeMap<>(settings).entrySet()) {
+            text.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Wall time, CPU time, allocated bytes and peak heap for each stage of one run, plus counts such as spots and cells.
+ * <p>
+ * Stages run one after the other: {@link #start(String)} ends the stage before it and {@link #stop()} ends the last.
+ * CPU time and allocation are summed over the threads registered with {@link #addThread(Thread)}, which are the
+ * pipeline thread and the workers of the run's fork-join pool, so other files running in the same JVM are not
+ * counted. A thread that ends keeps the CPU time and allocation it had when last read. Work done in other processes
+ * (the Cellpose worker) only shows up in the wall time. Peak heap is the most heap in use seen by a sampler that reads
+ * it every few milliseconds while the stage runs; it covers everything in the JVM, but unlike the pools' own peaks it
+ * is never reset, so runs side by side do not wipe each other's. A stage that runs more than once adds up.
+ * </p>
+ */
+final class RunMetrics {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    //How often the heap in use is read for the running stages' peaks
+    private static final long SAMPLE_MS = 10;
+
+    //Runs with a stage going, read by the sampler
+    private static final Set<RunMetrics> RUNNING = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService sampler;
+
+    private final String file;
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    //The last CPU time and allocation read for each thread, kept once it ends
+    private final Map<Long, long[]> threads = new ConcurrentHashMap<>();
+
+    private String current;
+    private Consumer<String> listener;
+    private long startWall;
+    private long startCpu;
+    private long startAllocated;
+    private volatile long stagePeak;
+
+    //Indices into the per-stage arrays
+    private static final int WALL = 0;
+    private static final int CPU = 1;
+    private static final int ALLOCATED = 2;
+    private static final int PEAK = 3;
+
+    //Indices into the last values read for a thread
+    private static final int CPU_SEEN = 0;
+    private static final int ALLOCATED_SEEN = 1;
+
+    RunMetrics(String file) {
+        this.file = file;
+        addThread(Thread.currentThread());
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    /**
+     * Includes this thread's CPU time and allocations from now on.
+     */
+    void addThread(Thread thread) {
+        threads.putIfAbsent(thread.getId(), new long[2]);
+    }
+
+    /**
+     * Tells listener the name of every stage as it starts, e.g. to report a job's progress. It is called on the
+     * pipeline thread, so it should be quick.
+     */
+    synchronized void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Ends the running stage, if any, and starts timing the named one.
+     */
+    synchronized void start(String stage) {
+        stop();
+        current = stage;
+        if (listener != null) {
+            listener.accept(stage);
+        }
+        stagePeak = usedHeap();
+        RUNNING.add(this);
+        startSampler();
+        startWall = System.nanoTime();
+        startCpu = cpuTime();
+        startAllocated = allocatedBytes();
+    }
+
+    /**
+     * Ends the running stage.
+     */
+    synchronized void stop() {
+        if (current == null) {
+            return;
+        }
+        long[] totals = stages.computeIfAbsent(current, k -> new long[4]);
+        totals[WALL] += System.nanoTime() - startWall;
+        totals[CPU] += Math.max(0, cpuTime() - startCpu);
+        totals[ALLOCATED] += Math.max(0, allocatedBytes() - startAllocated);
+        RUNNING.remove(this);
+        totals[PEAK] = Math.max(totals[PEAK], Math.max(stagePeak, usedHeap()));
+        current = null;
+    }
+
+    synchronized void count(String name, long value) {
+        counts.put(name, value);
+    }
+
+    synchronized Map<String, long[]> getStages() {
+        Map<String, long[]> copy = new LinkedHashMap<>();
+        stages.forEach((name, totals) -> copy.put(name, totals.clone()));
+        return copy;
+    }
+
+    synchronized Map<String, Long> getCounts() {
+        return new LinkedHashMap<>(counts);
+    }
+
+    private long cpuTime() {
+        if (!THREADS.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long total = 0;
+        for (Map.Entry<Long, long[]> thread : threads.entrySet()) {
+            //-1 for threads that have ended, which keep their last time
+            long time = THREADS.getThreadCpuTime(thread.getKey());
+            if (time >= 0) {
+                thread.getValue()[CPU_SEEN] = time;
+            }
+            total += thread.getValue()[CPU_SEEN];
+        }
+        return total;
+    }
+
+    private long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (Map.Entry<Long, long[]> thread : threads.entrySet()) {
+            long bytes = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(thread.getKey());
+            if (bytes >= 0) {
+                thread.getValue()[ALLOCATED_SEEN] = bytes;
+            }
+            total += thread.getValue()[ALLOCATED_SEEN];
+        }
+        return total;
+    }
+
+    private static long usedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    //One daemon thread for every run in the JVM, started with the first stage
+    private static synchronized void startSampler() {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "RunMetrics heap sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            if (RUNNING.isEmpty()) {
+                return;
+            }
+            long used = usedHeap();
+            for (RunMetrics run : RUNNING) {
+                if (used > run.stagePeak) {
+                    run.stagePeak = used;
+                }
+            }
+        }, SAMPLE_MS, SAMPLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The run as a JSON object: the file, each stage in the order it first ran, the totals and the counts.
+     */
+    synchronized String toJson() {
+        long[] total = new long[4];
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"file\": ").append(quote(file)).append(",\n  \"stages\": [");
+        String separator = "\n";
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            long[] totals = stage.getValue();
+            json.append(separator).append("    ").append(stageJson(stage.getKey(), totals));
+            separator = ",\n";
+            total[WALL] += totals[WALL];
+            total[CPU] += totals[CPU];
+            total[ALLOCATED] += totals[ALLOCATED];
+            total[PEAK] = Math.max(total[PEAK], totals[PEAK]);
+        }
+        json.append("\n  ],\n  \"total\": ").append(stageJson(null, total));
+        json.append(",\n  \"counts\": ").append(countsJson(counts)).append("\n}\n");
+        return json.toString();
+    }
+
+    void write(String path) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write(toJson());
+        }
+    }
+
+    /**
+     * Per stage sums and maxima over several runs, followed by every run in full.
+     */
+    static String aggregate(List<RunMetrics> runs) {
+        Map<String, long[]> sums = new LinkedHashMap<>();
+        Map<String, long[]> maxima = new LinkedHashMap<>();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (RunMetrics run : runs) {
+            run.getStages().forEach((name, totals) -> {
+                long[] sum = sums.computeIfAbsent(name, k -> new long[4]);
+                long[] max = maxima.computeIfAbsent(name, k -> new long[4]);
+                for (int i = 0; i < 4; i++) {
+                    sum[i] = i == PEAK ? Math.max(sum[i], totals[i]) : sum[i] + totals[i];
+                    max[i] = Math.max(max[i], totals[i]);
+                }
+            });
+            run.getCounts().forEach((name, value) -> counts.merge(name, value, Long::sum));
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"runs\": ").append(runs.size()).append(",\n  \"stages\": [");
+        String separator = "\n";
+        for (String name : sums.keySet()) {
+            json.append(separator).append("    {\"name\": ").append(quote(name))
+                    .append(", \"sum\": ").append(stageJson(null, sums.get(name)))
+                    .append(", \"max\": ").append(stageJson(null, maxima.get(name))).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n  \"counts\": ").append(countsJson(counts)).append(",\n  \"files\": [");
+        separator = "\n    ";
+        for (RunMetrics run : runs) {
+            json.append(separator).append(run.toJson().trim().replace("\n", "\n    "));
+            separator = ",\n    ";
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static String stageJson(String name, long[] totals) {
+        return String.format(Locale.ROOT, "{%s\"wallMs\": %.3f, \"cpuMs\": %.3f, \"allocatedBytes\": %d, "
+                        + "\"peakHeapBytes\": %d}", name == null ? "" : "\"name\": " + quote(name) + ", ",
+                totals[WALL] / 1e6, totals[CPU] / 1e6, totals[ALLOCATED], totals[PEAK]);
+    }
+
+    private static String countsJson(Map<String, Long> counts) {
+        StringBuilder json = new StringBuilder("{");
+        String separator = "";
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            json.append(separator).append(quote(count.getKey())).append(": ").append(count.getValue());
+            separator = ", ";
+        }
+        return json.append("}").toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
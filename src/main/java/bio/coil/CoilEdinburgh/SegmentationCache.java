@@ -0,0 +1,175 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of segmentation label masks.
+ * <p>
+ * Entries are keyed by a SHA-256 of the projection pixels and the segmentation parameters, so rerunning a file with
+ * a different FISH tolerance reuses the mask while any change to the DAPI data or the Cellpose settings misses.
+ * Masks are stored gzipped, one file per key, and written to a temporary file first so several runs can share the
+ * cache. When the folder grows past its size limit the least recently used entries are deleted.
+ * </p>
+ */
+final class SegmentationCache {
+
+    static final File DEFAULT_DIRECTORY =
+            new File(System.getProperty("user.home"), ".shelagh_fish" + File.separator + "segmentation");
+
+    private static final String SUFFIX = ".labels.gz";
+
+    //Runs in one JVM each have their own cache object, so evictions of a folder are serialised on this
+    private static final Object EVICT_LOCK = new Object();
+
+    private final File directory;
+    private final long maxBytes;
+
+    SegmentationCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Hash of the projection pixels and every parameter, in key order.
+     */
+    static String key(ImagePlus projection, Map<String, ?> parameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ImageProcessor ip = projection.getProcessor();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+        digest.update(header.array());
+        ByteBuffer row = ByteBuffer.allocate(ip.getWidth() * 4);
+        for (int y = 0; y < ip.getHeight(); y++) {
+            row.clear();
+            for (int x = 0; x < ip.getWidth(); x++) {
+                row.putFloat(ip.getf(x, y));
+            }
+            digest.update(row.array());
+        }
+        for (Map.Entry<String, ?> entry : new TreeMap<>(parameters).entrySet()) {
+            digest.update((entry.getKey() + "=" + entry.getValue() + ";").getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the cached labels, or null if there are none or the entry cannot be read.
+     */
+    LabelImage get(String key) {
+        File entry = new File(directory, key + SUFFIX);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(entry))))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            int count = in.readInt();
+            int[] labels = new int[width * height];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readInt();
+            }
+            //Mark as recently used
+            entry.setLastModified(System.currentTimeMillis());
+            return new LabelImage(width, height, labels, count);
+        } catch (IOException e) {
+            IJ.log("Ignoring unreadable cache entry " + entry.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void put(String key, LabelImage labels) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            IJ.log("Could not create segmentation cache " + directory);
+            return;
+        }
+        File entry = new File(directory, key + SUFFIX);
+        try {
+            File temp = File.createTempFile(key, ".tmp", directory);
+            //A temp file left by a failed write would never count toward the cap or be evicted
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(new FileOutputStream(temp))))) {
+                    out.writeInt(labels.getWidth());
+                    out.writeInt(labels.getHeight());
+                    out.writeInt(labels.getCount());
+                    for (int label : labels.getLabels()) {
+                        out.writeInt(label);
+                    }
+                }
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException e) {
+            IJ.log("Could not write segmentation cache entry: " + e.getMessage());
+            return;
+        }
+        evict();
+    }
+
+    //Delete the least recently used entries until the cache fits. Another process evicting at the same time only
+    //finds some entries gone, which then count as 0 bytes. Each entry's time and size are read once, so an entry
+    //deleted part way through cannot change its place in the sort
+    private void evict() {
+        synchronized (EVICT_LOCK) {
+            File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (entries == null) {
+                return;
+            }
+            //{last modified, length, index in entries}
+            long[][] order = new long[entries.length][];
+            long total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                order[i] = new long[]{entries[i].lastModified(), entries[i].length(), i};
+                total += order[i][1];
+            }
+            Arrays.sort(order, Comparator.comparingLong((long[] entry) -> entry[0]));
+            for (int i = 0; i < order.length - 1 && total > maxBytes; i++) {
+                total -= order[i][1];
+                entries[(int) order[i][2]].delete();
+            }
+        }
+    }
+}
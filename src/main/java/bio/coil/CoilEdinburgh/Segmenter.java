@@ -0,0 +1,47 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segments the cells in a DAPI max projection into a label image.
+ * <p>
+ * Implementations must be safe to call from several runs at once, as the batch command shares them between its
+ * workers.
+ * </p>
+ */
+interface Segmenter {
+
+    /**
+     * Every setting that changes the result. Together with the projection pixels this is the segmentation cache key.
+     */
+    Map<String, Object> getSettings();
+
+    /**
+     * Labels the cells in one projection.
+     */
+    LabelImage segment(ImagePlus projection) throws IOException;
+
+    /**
+     * Labels several projections, in order. Backends with a per-call cost can override this to send them together.
+     */
+    default List<LabelImage> segmentAll(List<ImagePlus> projections) throws IOException {
+        List<LabelImage> labels = new ArrayList<>();
+        for (ImagePlus projection : projections) {
+            labels.add(segment(projection));
+        }
+        return labels;
+    }
+}
@@ -9,33 +9,29 @@
 package bio.coil.CoilEdinburgh;
 
 import ij.IJ;
+import ij.CompositeImage;
 import ij.ImagePlus;
-import ij.WindowManager;
+import ij.ImageStack;
 import ij.gui.Line;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.plugin.ChannelSplitter;
-import ij.plugin.Concatenator;
-import ij.plugin.Duplicator;
+import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
+import ij.plugin.ContrastEnhancer;
+import ij.plugin.Duplicator;
 import ij.plugin.filter.MaximumFinder;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
+import ij.process.LUT;
 import io.scif.services.DatasetIOService;
 import io.scif.services.FormatService;
 import net.imagej.ImageJ;
 import net.imagej.ops.OpService;
 import net.imagej.roi.ROIService;
-import net.imglib2.IterableInterval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.roi.MaskInterval;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
-import net.imglib2.Cursor;
+import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
+import org.scijava.command.CommandService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.ui.UIService;
@@ -46,9 +42,20 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.math.RoundingMode;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /**
  * This example illustrates how to create an ImageJ {@link Command} plugin.
@@ -79,249 +86,1170 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
     @Parameter
     private ROIService roiService;
 
+    @Parameter
+    private CommandService commandService;
+
     @Parameter(label = "File: ")
     public File file;
 
     @Parameter(label = "FISH Tolerance: ", style="directory")
     public double tolerance;
 
-    RoiManager roiManager;
+    @Parameter(label = "Tolerance sweep: ", required = false,
+            description = "Extra tolerances for Distances_Sweep.csv, e.g. 1000,1500,2000 or 1000-3000:500")
+    public String toleranceSweep = "";
+
+    @Parameter(label = "Spot detection: ", choices = {SPOTS_3D, SPOTS_PROJECTION},
+            description = "3D keeps spots stacked in Z apart, the projection is the original method")
+    public String spotDetection = SPOTS_3D;
+
+    @Parameter(label = "Spot size (pixels): ", min = "0.5",
+            description = "Gaussian sigma of a FISH spot in XY, used by 3D spot detection")
+    public double spotSigma = 1.5;
+
+    @Parameter(label = "Distance to edge: ", choices = {LINE_DISTANCE, EDGE_DISTANCE})
+    public String distanceMode = LINE_DISTANCE;
+
+    @Parameter(label = "Segmentation: ", choices = {CELLPOSE_PLUGIN, CELLPOSE_WORKER, WATERSHED})
+    public String segmentation = CELLPOSE_PLUGIN;
+
+    @Parameter(label = "Cellpose worker command: ", required = false,
+            description = "Command that starts the worker, {script} is replaced by the bundled cellpose_worker.py")
+    public String cellposeWorkerCommand = CellposeWorker.DEFAULT_COMMAND;
+
+    @Parameter(label = "Reuse cached segmentation: ")
+    public boolean useSegmentationCache = true;
+
+    @Parameter(label = "Segmentation cache size (MB): ", min = "1")
+    public int segmentationCacheMB = 1024;
+
+    @Parameter(label = "Threads: ", min = "1")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "Tile size (pixels, 0 for whole field): ", min = "0",
+            description = "Fields wider or taller than this are analysed tile by tile, e.g. 2048 for stitched scans")
+    public int tileSize = 0;
+
+    @Parameter(label = "Output images: ", choices = {OutputWriter.TIFF, OutputWriter.TIFF_LZW, OutputWriter.TIFF_ZLIB,
+            OutputWriter.OME_ZARR})
+    public String outputFormat = OutputWriter.TIFF;
+
+    @Parameter(label = "Also write Distances.csv: ", description = "The results are always written to Spots.arrow "
+            + "and Cells.arrow, Distances.csv has the spots in cells in the layout of earlier versions")
+    public boolean csvResults = true;
+
+    @Parameter(label = "Resume from a previous run: ", description = "Skip the file if a run with the same settings "
+            + "finished it, reuse the spots and cells a run that stopped part way saved, and overwrite its results")
+    public boolean resume = false;
+
+    //The batch leaves the images of one file to be written while it analyses the next, and waits once at the end
+    @Parameter(visibility = ItemVisibility.INVISIBLE, required = false, persist = false)
+    public boolean waitForOutput = true;
+
     double pixelWidth;
     double pixelHeight;
     double pixelDepth;
-    ImagePlus projDAPI;
     String newDirectory;
+    List<String> resultRows = new ArrayList<>();
+    EdgeDistanceMap[] edgeMaps;
+    RunMetrics metrics;
+
+    //Set to bypass the Segmentation choice, e.g. with known labels in PipelineHarnessTest
+    Segmenter segmenter;
+
+    //Spots {x, y, z, cell label} and their distances from the last run, in the layout of findDistance
+    double[][] spotPositions;
+    double[][] spotDistances;
+
+    //Spot intensities in the layout of findZPositions, cell outlines and DAPI stats from the last run
+    double[][] spotIntensities;
+    Roi[] cellOutlines;
+    double[][] cellStats;
+
+    //Set to write the results somewhere other than the _Output folder next to the file, e.g. for each tile
+    String outputDirectory;
+
+    //Set to mask the cells with this {lower, upper} threshold rather than one from the first DAPI slice, e.g. the
+    //field's threshold for each tile
+    double[] cellThreshold;
+
+    //The stack of the file this run analyses, 0-based
+    int series;
+    int timepoint;
+    List<String> seriesRows = new ArrayList<>();
+
+    //With resume, what a previous run of this file or stack finished, and this run's images still being written
+    RunManifest manifest;
+    String fingerprint;
+    List<CompletableFuture<Void>> imageWrites = new ArrayList<>();
+
+    //Spot and cell records of the last run, Distances.csv is a view of them
+    ResultRecords records;
+
+    //Whether the last run wrote Spots.arrow and Cells.arrow, so a resumed run knows which results to read back
+    private boolean recordsWritten;
+
+    //Told the name of each stage as it starts, e.g. by the service to report a job's progress
+    Consumer<String> progress;
+
+    //Why the last run did not finish its results, null if it did
+    volatile String failure;
+
+    static final String RESULTS_HEADER = "Spot, Cell, Cell Width(x), Cell Height(y), Distance, Spot Intensity DAPI, " +
+            "Spot Intensity Green, Cell Max DAPI, Cell Min DAPI, Cell Mean DAPI, Cell Median DAPI";
+
+    static final String SPOTS_3D = "3D on the stack (Difference of Gaussians)";
+    static final String SPOTS_PROJECTION = "Max projection (Find Maxima)";
+
+    static final String SERIES_HEADER = "Series, Time, " + RESULTS_HEADER;
+
+    static final String LINE_DISTANCE = "Along the line from the cell centre";
+    static final String EDGE_DISTANCE = "Nearest edge in 3D";
+
+    static final String CELLPOSE_PLUGIN = "Cellpose (BIOP wrapper)";
+    static final String CELLPOSE_WORKER = "Cellpose (persistent worker)";
+    static final String WATERSHED = "Threshold and watershed (no Python)";
+
+    //Projections waiting for the worker are sent together up to this many at a time
+    static final int WORKER_BATCH_SIZE = 8;
+
+    //Tiles and the stacks of multi-series files get this many of the threads each, so threads / 4 run at once
+    static final int THREADS_PER_PART = 4;
+
+    //Largest side of the shrunk whole-field slice a tiled run takes its cell threshold from
+    static final int OVERVIEW = 2048;
 
     @Override
     public void run() {
 
-        //Open file and split channels
-        roiManager = new RoiManager();
-        IJ.open(file.toString());
-        ImagePlus imp = WindowManager.getCurrentImage();
+        //Read only the FISH (2) and DAPI (3) channels, plane by plane, one series and time point at a time
+        metrics = new RunMetrics(file.getName());
+        metrics.setListener(progress);
+        failure = null;
+        if (resume && skipIfDone()) {
+            return;
+        }
+        metrics.start("open");
+        ChannelLoader opened;
+        try {
+            opened = new ChannelLoader(formatService, file);
+        } catch (IOException e) {
+            //Fall back to opening the whole file with ImageJ, only if SCIFIO cannot open it at all
+            IJ.log(e.getMessage() + ", opening the whole file instead");
+            opened = null;
+        }
+        if (opened == null) {
+            ImagePlus imp = IJ.openImage(file.toString());
+            if (imp == null) {
+                fail("Could not open " + file);
+                metrics.stop();
+                return;
+            }
+            analyse(imp);
+        } else {
+            //A read error part way through is not retried with ImageJ, which would write a second set of outputs
+            try (ChannelLoader loader = opened) {
+                if (loader.getSeriesCount() > 1 || loader.getTimepoints(0) > 1) {
+                    List<int[]> stacks = new ArrayList<>();
+                    for (int s = 0; s < loader.getSeriesCount(); s++) {
+                        for (int t = 0; t < loader.getTimepoints(s); t++) {
+                            stacks.add(new int[]{s, t});
+                        }
+                    }
+                    analyseSeries(stacks, part -> part.analyseLoaded(loader));
+                } else {
+                    analyseLoaded(loader);
+                }
+            } catch (IOException e) {
+                fail("Error reading " + file + ": " + e.getMessage());
+                metrics.stop();
+            }
+        }
+        if (waitForOutput) {
+            OutputWriter.shared().flush();
+        }
+    }
+
+    //Analyses this run's series and time point of an open file, tile by tile if it is bigger than the tile size
+    private void analyseLoaded(ChannelLoader loader) throws IOException {
+        //A stack of a multi-series file has its own manifest
+        if (resume && manifest == null && skipIfDone()) {
+            return;
+        }
+        if (tileSize > 0 && (loader.getWidth(series) > tileSize || loader.getHeight(series) > tileSize)) {
+            analyseTiles(loader);
+            return;
+        }
+        metrics.start("open");
+        Rectangle field = new Rectangle(0, 0, loader.getWidth(series), loader.getHeight(series));
+        ImagePlus impFISH;
+        ImagePlus impDAPI;
+        //Stacks of a multi-series file share the reader, so they take turns to read
+        synchronized (loader) {
+            impFISH = loader.loadChannel(series, timepoint, 1, field);
+            impDAPI = loader.loadChannel(series, timepoint, 2, field);
+        }
+        analyse(impFISH, impDAPI);
+    }
+
+    /**
+     * Returns the rows written to Distances.csv by the last run, in the same column order as {@link #RESULTS_HEADER}.
+     */
+    public List<String> getResultRows() {
+        return resultRows;
+    }
+
+    /**
+     * Returns the rows of the last run with the series and time point (1-based) in front, as in
+     * {@link #SERIES_HEADER}.
+     */
+    public List<String> getSeriesRows() {
+        return seriesRows;
+    }
+
+    /**
+     * Stage timings and counts of the last run, also written to metrics.json.
+     */
+    RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Spot and cell records of the last run, also written to Spots.arrow and Cells.arrow.
+     */
+    ResultRecords getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns why the last run failed, or null if every stack and tile was analysed and the results were written. A
+     * missing Apache Arrow is not a failure, Distances.csv is written instead.
+     */
+    String getFailure() {
+        return failure;
+    }
+
+    //Logs what went wrong and keeps the first reason for getFailure
+    private void fail(String reason) {
+        IJ.log(reason);
+        if (failure == null) {
+            failure = reason;
+        }
+    }
+
+    /**
+     * Runs the whole pipeline on an image that is already in memory. Every stage is handed its images explicitly and
+     * nothing is shown, so this never touches the WindowManager or the RoiManager and several runs can share a JVM.
+     */
+    public void analyse(ImagePlus imp) {
+
+        //Split channels, each time point of a time-lapse on its own
+        if (metrics == null) {
+            metrics = new RunMetrics(file.getName());
+            metrics.setListener(progress);
+        }
+        metrics.start("split");
+        if (imp.getNFrames() > 1) {
+            List<int[]> stacks = new ArrayList<>();
+            for (int t = 0; t < imp.getNFrames(); t++) {
+                stacks.add(new int[]{0, t});
+            }
+            analyseSeries(stacks, part -> {
+                ImagePlus impFISH;
+                ImagePlus impDAPI;
+                synchronized (imp) {
+                    int t = part.timepoint + 1;
+                    impFISH = new Duplicator().run(imp, 2, 2, 1, imp.getNSlices(), t, t);
+                    impDAPI = new Duplicator().run(imp, 3, 3, 1, imp.getNSlices(), t, t);
+                }
+                part.analyse(impFISH, impDAPI);
+            });
+            return;
+        }
         ImagePlus[] channels = ChannelSplitter.split(imp);
-        ImagePlus impDAPI = channels[2];
-        ImagePlus impFISH = channels[1];
+        analyse(channels[1], channels[2]);
+    }
+
+    /**
+     * Runs the whole pipeline on the FISH and DAPI Z-stacks.
+     * <p>
+     * The pipeline runs inside its own fork-join pool of {@link #threads} threads, so every parallel loop over cells,
+     * slices and spots shares that pool rather than the JVM wide common pool. Each parallel task only writes its own
+     * results and all drawing happens afterwards in order, so the output is the same for any number of threads.
+     * </p>
+     */
+    public void analyse(ImagePlus impFISH, ImagePlus impDAPI) {
+        if (metrics == null) {
+            metrics = new RunMetrics(file.getName());
+            metrics.setListener(progress);
+        }
+        //Register every pool thread so the metrics count their CPU time and allocations
+        RunMetrics runMetrics = metrics;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads), p -> {
+            ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            runMetrics.addThread(worker);
+            return worker;
+        }, null, false);
+        try {
+            pool.submit(() -> analyseStacks(impFISH, impDAPI)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Analysis of " + file.getName() + " interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void analyseStacks(ImagePlus impFISH, ImagePlus impDAPI) {
+
+        impDAPI.setTitle("DAPI");
+        impFISH.setTitle("FISH");
 
         //Create a new folder to save results
-        String directory = file.getAbsolutePath();
-        newDirectory = directory.substring(0, directory.lastIndexOf(".")) + "_Output";
-        new File(newDirectory).mkdir();
+        makeOutputDirectory();
+        if (resume && manifest == null) {
+            openManifest();
+        }
 
         //Get Scale
-        IJ.run(imp, "Enhance Contrast", "saturated=0.35");
         pixelWidth = impDAPI.getCalibration().pixelWidth;
         pixelHeight = impDAPI.getCalibration().pixelHeight;
         pixelDepth = impDAPI.getCalibration().pixelDepth;
 
-        //Find XYZ positions of green maxima
-        double[][] xyGreen = findXYpositions(impFISH, tolerance);
-        double[][] xyzGreen = findZPositions(impFISH, impDAPI, xyGreen);
+        //Find XYZ positions of green maxima, in 3D on the stack, or from one pass that gives the projection and the
+        //brightest slice per pixel. A resumed run reads back the spots it saved
+        ZMaxProjection projGreen = null;
+        SpotDetector3D spots3D = null;
+        double[][] xyzGreen;
+        double[][] savedSpots = manifest != null && manifest.isDone(RunManifest.SPOTS)
+                ? manifest.loadTable(RunManifest.SPOTS) : null;
+        boolean sweep = toleranceSweep != null && !toleranceSweep.trim().isEmpty();
+        if (SPOTS_PROJECTION.equals(spotDetection)) {
+            //The sweep still needs the projection when the spots are read back
+            if (savedSpots == null || sweep) {
+                metrics.start("projectFISH");
+                projGreen = ZMaxProjection.of(impFISH);
+            }
+            if (savedSpots != null) {
+                xyzGreen = savedSpots;
+            } else {
+                metrics.start("findXYpositions");
+                double[][] xyGreen = findXYpositions(projGreen.getImage(), tolerance);
+                metrics.start("findZPositions");
+                xyzGreen = findZPositions(projGreen, impDAPI, xyGreen);
+            }
+        } else {
+            metrics.start("findSpots3D");
+            if (savedSpots != null) {
+                spots3D = SpotDetector3D.fromTable(savedSpots);
+            } else {
+                double[] range = getToleranceRange();
+                spots3D = SpotDetector3D.detect(impFISH.getStack(), impDAPI.getStack(), spotSigma,
+                        pixelWidth / pixelDepth, range[0], range[1]);
+            }
+            xyzGreen = spots3D.select(tolerance);
+        }
+        if (manifest != null && savedSpots == null) {
+            manifest.saveTable(RunManifest.SPOTS, spots3D != null ? spots3D.toTable() : xyzGreen);
+            manifest.markDone(RunManifest.SPOTS);
+        }
 
         //Find the XYZ Cell outlines and the intensity stats per cell in the DAPI channel
-        Roi[] cellOutlines = findCellOutlines(impDAPI);
-        ImagePlus dapi = impDAPI.duplicate();
-        dapi.show();
-        Roi[][] cell3D = get3DCellROIs(cellOutlines, impDAPI);
-        double[][] DapiStats = get3DCellStats(cell3D, dapi);
+        metrics.start("projectDAPI");
+        ImagePlus projDAPI = ZProjector.run(impDAPI, "max");
+        projDAPI.setTitle("DAPI_proj");
+        metrics.start("findCellOutlines");
+        LabelImage cellLabels = manifest != null && manifest.isDone(RunManifest.SEGMENTATION)
+                ? manifest.getLabelStore().get(RunManifest.SEGMENTATION) : null;
+        if (cellLabels == null) {
+            cellLabels = findCellOutlines(projDAPI);
+            if (manifest != null) {
+                manifest.getLabelStore().put(RunManifest.SEGMENTATION, cellLabels);
+                manifest.markDone(RunManifest.SEGMENTATION);
+            }
+        }
+        Roi[] cellOutlines = cellLabels.getOutlines();
+
+        //Subtract the background once per channel for the masks, reslices and overviews. DAPI is kept raw for the
+        //stats and spot intensities, FISH is no longer needed raw once the spots are found
+        metrics.start("subtractBackground");
+        ImagePlus dapiCorrected = Background.subtract(impDAPI, Background.RADIUS, true);
+        ImagePlus fishCorrected = Background.subtract(impFISH, Background.RADIUS, false);
+        metrics.start("get3DCellROIs");
+        CellMasks cell3D = get3DCellROIs(cellOutlines, cellLabels, dapiCorrected);
+        metrics.start("get3DCellStats");
+        double[][] DapiStats = get3DCellStats(cell3D, impDAPI);
 
         //Find which cell each spot belongs to
-        double[][] xyzCellGreen = whichCell(xyzGreen,cellOutlines);
+        metrics.start("whichCell");
+        double[][] xyzCellGreen = whichCell(xyzGreen,cellLabels);
 
         //Find the distances of the spot to the nearest cell edge and the intensity at the spot in each channel
-        double[][] distances = findDistance(xyzCellGreen,cell3D, cellOutlines);
+        metrics.start(EDGE_DISTANCE.equals(distanceMode) ? "findEdgeDistance" : "findDistance");
+        edgeMaps = new EdgeDistanceMap[cellOutlines.length];
+        double[][] distances = EDGE_DISTANCE.equals(distanceMode)
+                ? findEdgeDistance(xyzCellGreen, cell3D, cellOutlines, projDAPI.getProcessor())
+                : findDistance(xyzCellGreen,cell3D, cellOutlines, projDAPI.getProcessor());
+
+        spotPositions = xyzCellGreen;
+        spotDistances = distances;
 
         //Make the Z-slice output image stack
-        makeSlices(impFISH, impDAPI, distances, xyzCellGreen);
+        metrics.start("makeSlices");
+        makeSlices(fishCorrected, dapiCorrected, distances, xyzCellGreen);
 
         //Merge the DAPI (with distances drawn on) and FISH (green) channel Z-projections
-        projDAPI.setTitle("DAPI_proj");
-        ImagePlus projFISH = ZProjector.run(impFISH, "max");
-        projFISH.show();
+        metrics.start("merges");
+        ImagePlus projFISH = ZProjector.run(fishCorrected, "max");
         projFISH.setTitle("projFISH");
-        IJ.run("Merge Channels...", "c2=[projFISH] c4=[DAPI_proj] create");
-        ImagePlus xyOutput = WindowManager.getCurrentImage();
+        ImagePlus xyOutput = merge(projFISH, projDAPI);
         xyOutput.setTitle("xyOutput");
 
         //Merge the DAPI (with cell outlines) and FISH Z-stacks
-        IJ.run("Merge Channels...", "c2=[FISH] c4=[DAPI] create");
-        ImagePlus xyzOutlines = WindowManager.getCurrentImage();
+        ImagePlus xyzOutlines = merge(fishCorrected, dapiCorrected);
         xyzOutlines.setTitle("xyzOutlines");
 
         //Save both the XY and XYZ merged overview images
+        metrics.start("saves");
+        //Queued, so the results and the next stack go ahead while they are written
         String Name = Paths.get( newDirectory,"XYZ_CellOutlines").toString();
-        IJ.saveAs(xyzOutlines, "Tiff", Name);
+        imageWrites.add(OutputWriter.shared().write(xyzOutlines, Name, outputFormat));
         String CreateName = Paths.get( newDirectory,"XY_Overview").toString();
-        IJ.saveAs(xyOutput, "Tiff", CreateName);
+        imageWrites.add(OutputWriter.shared().write(xyOutput, CreateName, outputFormat));
 
         //Make the results file with distances and intensity data for each cell
+        metrics.start("makeResultsFile");
         makeResultsFile(xyzCellGreen,xyzGreen, distances, cellOutlines, DapiStats);
+        spotIntensities = xyzGreen;
+        this.cellOutlines = cellOutlines;
+        cellStats = DapiStats;
+
+        //Rerun only the tolerance dependent steps for any other tolerances, reusing the spots, cells and stats
+        if (sweep) {
+            metrics.start("toleranceSweep");
+            makeSweepFile(projGreen, spots3D, impDAPI, cellLabels, cell3D, cellOutlines, DapiStats);
+        }
+        //The distance maps are about 9 bytes a voxel of every cell's box, not kept once the sweep is done with them
+        edgeMaps = null;
+        metrics.stop();
+
+        //Write the stage timings and counts next to Distances.csv
+        metrics.count("width", impDAPI.getWidth());
+        metrics.count("height", impDAPI.getHeight());
+        metrics.count("slices", impDAPI.getStackSize());
+        metrics.count("cells", cellOutlines.length);
+        metrics.count("spots", xyzGreen.length);
+        metrics.count("spotsInCells", Arrays.stream(xyzCellGreen).filter(spot -> spot[3] != 0).count());
+        metrics.count("threads", threads);
+        try {
+            metrics.write(newFileName("metrics", ".json"));
+        } catch (IOException e) {
+            IJ.log("Could not write metrics for " + file.getName() + ": " + e.getMessage());
+        }
+        markResultsDone();
+    }
 
-        //Close all Images and ROI manager
-        IJ.run("Close All", " ");
-        roiManager.close();
+    //The _Output folder next to the file unless outputDirectory is set
+    private void makeOutputDirectory() {
+        if (outputDirectory != null) {
+            newDirectory = outputDirectory;
+        } else {
+            String directory = file.getAbsolutePath();
+            newDirectory = directory.substring(0, directory.lastIndexOf(".")) + "_Output";
+        }
+        new File(newDirectory).mkdirs();
     }
 
-    private ArrayList<Double> getPixelValues(Img<T> img, Roi roi, ArrayList<Double> pixelList){
+    //Everything that changes the results, a previous run only counts if it had the same
+    private Map<String, Object> getSettings() {
+        Map<String, Object> settings = new TreeMap<>(segmenter != null
+                ? segmenter.getSettings() : CellposePluginSegmenter.defaultSettings());
+        settings.put("tolerance", tolerance);
+        settings.put("toleranceSweep", toleranceSweep);
+        settings.put("spotDetection", spotDetection);
+        settings.put("spotSigma", spotSigma);
+        settings.put("distanceMode", distanceMode);
+        settings.put("segmentation", segmentation);
+        settings.put("cellposeWorkerCommand", cellposeWorkerCommand);
+        settings.put("tileSize", tileSize);
+        settings.put("outputFormat", outputFormat);
+        settings.put("series", series);
+        settings.put("timepoint", timepoint);
+        return settings;
+    }
 
-        //Initialize output variables and cursors
-        MaskInterval maskInterval = roiService.toMaskInterval(roi);
-        IterableInterval interval = Views.interval(img, maskInterval);
-        Cursor<T> cursor = interval.localizingCursor();
+    //Opens the manifest in the output folder, it stays null if the file cannot be fingerprinted
+    private void openManifest() {
+        makeOutputDirectory();
+        try {
+            if (fingerprint == null) {
+                fingerprint = RunManifest.fingerprint(file);
+            }
+            manifest = RunManifest.open(new File(newDirectory), fingerprint, getSettings());
+        } catch (IOException e) {
+            IJ.log("Cannot resume " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    //True if a previous run with the same file and settings finished, its records are then read back, or its
+    //Distances.csv rows if it could not write the records (no Arrow) or they cannot be read here
+    private boolean skipIfDone() {
+        openManifest();
+        if (manifest == null || !manifest.isComplete()) {
+            return false;
+        }
+        if (manifest.isDone(RunManifest.RECORDS) && readRecords()) {
+            resultRows = records.getCsvRows();
+            seriesRows = records.getSeriesCsvRows();
+        } else {
+            records = null;
+            try {
+                readDistancesFile();
+            } catch (IOException e) {
+                //Results a previous run did not leave behind mean analysing again
+                return false;
+            }
+        }
+        IJ.log("Skipping " + newDirectory + ", finished by a previous run");
+        return true;
+    }
 
-        //Loop through the pixels in the mask
-        for(int k =0; k< interval.size(); k++){
-            int x = (int) cursor.positionAsDoubleArray()[0];
-            int y = (int) cursor.positionAsDoubleArray()[1];
+    private boolean readRecords() {
+        try {
+            records = ResultsStore.read(file.getName(),
+                    Paths.get(newDirectory, ResultsStore.SPOTS + ResultsStore.EXTENSION).toFile(),
+                    Paths.get(newDirectory, ResultsStore.CELLS + ResultsStore.EXTENSION).toFile());
+            return true;
+        } catch (IOException | RuntimeException | LinkageError e) {
+            return false;
+        }
+    }
 
-            //If the pixel is in the bounding ROI
-            if(roi.contains(x,y)) {
-                //If the value of a pixel in the background subtracted image is higher than the threshold it is positive
-                pixelList.add(cursor.get().getRealDouble());
+    //The rows of the Distances.csv in the output folder, as written by writeDistancesFile with either header
+    private void readDistancesFile() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(newDirectory, "Distances.csv"));
+        if (lines.size() < 4) {
+            throw new IOException("Distances.csv is incomplete");
+        }
+        List<String> rows = lines.subList(4, lines.size());
+        resultRows = new ArrayList<>();
+        seriesRows = new ArrayList<>();
+        if (lines.get(3).equals(SERIES_HEADER)) {
+            for (String row : rows) {
+                seriesRows.add(row);
+                resultRows.add(row.substring(row.indexOf(',', row.indexOf(',') + 1) + 1));
+            }
+        } else if (lines.get(3).equals(RESULTS_HEADER)) {
+            for (String row : rows) {
+                resultRows.add(row);
+                seriesRows.add((series + 1) + "," + (timepoint + 1) + "," + row);
             }
-            //Move the cursors forwards
-            cursor.fwd();
+        } else {
+            throw new IOException("Distances.csv has an unknown header");
+        }
+    }
 
+    //The results are written, the images are done once the writer has them all on disk. A run that could not write
+    //its results is not marked, so it is done again
+    private void markResultsDone() {
+        if (manifest == null || failure != null) {
+            return;
         }
-        return pixelList;
+        RunManifest done = manifest;
+        if (recordsWritten) {
+            done.markDone(RunManifest.RECORDS);
+        }
+        done.markDone(RunManifest.RESULTS);
+        CompletableFuture.allOf(imageWrites.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> done.markDone(RunManifest.IMAGES));
     }
 
-    private double[][] get3DCellStats(Roi[][] cells, ImagePlus imp){
-        double[][] results = new double[cells.length][4];
-        ImageProcessor ip = imp.getProcessor();
-        for(int i = 0 ; i< cells.length; i++){
+    /**
+     * Runs the pipeline on a field too big to hold at once, one tile at a time per {@link #THREADS_PER_PART} threads.
+     * <p>
+     * Each tile is read with a halo one nucleus diameter wide and analysed as a field of its own, with its images and
+     * results in a Tile_n folder. A tile keeps the cells whose centre is in its core and the spots in them, plus the
+     * spots outside any cell that are in its core. A cell crossing a border is therefore counted once, by the tile
+     * that sees all of it, and so are its spots. Spots are also dropped if another tile already reported the same
+     * voxel, in case two tiles segment a border nucleus slightly differently. The kept cells and spots, shifted to
+     * field coordinates and numbered in tile order, make Distances.csv. Only the tiles being analysed are ever in
+     * memory, so there are no whole-field images.
+     * </p>
+     * <p>
+     * Every tile masks its cells with one threshold taken from a shrunk copy of the whole field, so the masks do not
+     * depend on where the tile borders fall. The rolling ball background is still subtracted tile by tile, so the
+     * masks, and the distances, can differ slightly from an untiled run near tile borders.
+     * </p>
+     */
+    private void analyseTiles(ChannelLoader loader) {
+        metrics.start("tiles");
+        makeOutputDirectory();
+        double diameter = ((Number) CellposePluginSegmenter.defaultSettings().get("diameter")).doubleValue();
+        TileGrid grid = TileGrid.of(loader.getWidth(series), loader.getHeight(series), tileSize,
+                (int) Math.ceil(diameter));
+        int concurrent = Math.max(1, Math.min(grid.size(), threads / THREADS_PER_PART));
+        int tileThreads = Math.max(1, threads / concurrent);
+        IJ.log("Analysing " + file.getName() + " as " + grid.size() + " tiles, " + concurrent + " at a time");
+        double[] fieldThreshold;
+        try {
+            fieldThreshold = getFieldThreshold(loader);
+        } catch (IOException e) {
+            fail("Could not read " + file.getName() + ": " + e.getMessage());
+            metrics.stop();
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrent);
+        List<Future<Shelagh_FISH<T>>> futures = new ArrayList<>();
+        for (int i = 0; i < grid.size(); i++) {
+            int tile = i;
+            futures.add(pool.submit(() -> analyseTile(loader, grid.getPadded(tile), tile, tileThreads,
+                    fieldThreshold)));
+        }
+        pool.shutdown();
+
+        //Merge in tile order so the numbering does not depend on which tile finished first
+        List<double[]> xyzCell = new ArrayList<>();
+        List<double[]> xyzInt = new ArrayList<>();
+        List<double[]> distances = new ArrayList<>();
+        List<Roi> outlines = new ArrayList<>();
+        List<double[]> stats = new ArrayList<>();
+        List<RunMetrics> tileMetrics = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        boolean failed = false;
+        int width = loader.getWidth(series);
+        int height = loader.getHeight(series);
+        for (int i = 0; i < grid.size(); i++) {
+            Shelagh_FISH<T> tile;
+            try {
+                tile = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                fail("Analysis of " + file.getName() + " interrupted");
+                return;
+            } catch (ExecutionException e) {
+                fail("Tile " + (i + 1) + " of " + file.getName() + " failed: " + e.getCause());
+                failed = true;
+                continue;
+            }
+            if (tile.getFailure() != null) {
+                fail("Tile " + (i + 1) + " of " + file.getName() + " failed: " + tile.getFailure());
+                failed = true;
+            }
+            tileMetrics.add(tile.getMetrics());
+            imageWrites.addAll(tile.imageWrites);
+            if (tile.cellOutlines == null) {
+                continue;
+            }
+            pixelWidth = tile.pixelWidth;
+            pixelHeight = tile.pixelHeight;
+            pixelDepth = tile.pixelDepth;
+            Rectangle core = grid.getCore(i);
+            int dx = grid.getPadded(i).x;
+            int dy = grid.getPadded(i).y;
+
+            //Cells whose centre is in the core, numbered after those of the tiles before
+            int[] fieldLabel = new int[tile.cellOutlines.length];
+            for (int c = 0; c < tile.cellOutlines.length; c++) {
+                double[] centroid = tile.cellOutlines[c].getContourCentroid();
+                if (core.contains((int) centroid[0] + dx, (int) centroid[1] + dy)) {
+                    Roi outline = (Roi) tile.cellOutlines[c].clone();
+                    Rectangle bounds = outline.getBounds();
+                    outline.setLocation(bounds.x + dx, bounds.y + dy);
+                    outlines.add(outline);
+                    stats.add(tile.cellStats[c]);
+                    fieldLabel[c] = outlines.size();
+                }
+            }
+
+            for (int j = 0; j < tile.spotPositions.length; j++) {
+                double[] spot = tile.spotPositions[j];
+                int x = (int) spot[0] + dx;
+                int y = (int) spot[1] + dy;
+                int z = (int) spot[2];
+                int label = spot[3] != 0 ? fieldLabel[(int) spot[3] - 1] : 0;
+                boolean owned = spot[3] != 0 ? label != 0 : core.contains(x, y);
+                if (!owned || !seen.add(((long) z * height + y) * width + x)) {
+                    continue;
+                }
+                xyzCell.add(new double[]{x, y, z, label});
+                double[] intensity = tile.spotIntensities[j].clone();
+                intensity[0] += dx;
+                intensity[1] += dy;
+                xyzInt.add(intensity);
+                double[] distance = tile.spotDistances[j].clone();
+                if (label != 0) {
+                    for (int k = 0; k < 6; k += 2) {
+                        distance[k] += dx;
+                        distance[k + 1] += dy;
+                    }
+                }
+                distances.add(distance);
+            }
+        }
+
+        metrics.start("makeResultsFile");
+        spotPositions = xyzCell.toArray(new double[0][]);
+        spotIntensities = xyzInt.toArray(new double[0][]);
+        spotDistances = distances.toArray(new double[0][]);
+        cellOutlines = outlines.toArray(new Roi[0]);
+        cellStats = stats.toArray(new double[0][]);
+        makeResultsFile(spotPositions, spotIntensities, spotDistances, cellOutlines, cellStats);
+        metrics.stop();
+
+        //The field's own stages and counts, and every tile's metrics together
+        metrics.count("width", width);
+        metrics.count("height", height);
+        metrics.count("slices", loader.getSlices(series));
+        metrics.count("tiles", grid.size());
+        metrics.count("cells", cellOutlines.length);
+        metrics.count("spots", spotPositions.length);
+        metrics.count("spotsInCells", Arrays.stream(spotPositions).filter(spot -> spot[3] != 0).count());
+        metrics.count("threads", threads);
+        writeMetrics("TileMetrics", tileMetrics);
+        //A field with a failed tile is redone next time
+        if (!failed) {
+            markResultsDone();
+        }
+    }
+
+    /**
+     * Work on one stack of a file with several, run with the stack's series and time point set.
+     */
+    private interface StackTask {
+        void run(Shelagh_FISH<?> part) throws IOException;
+    }
+
+    /**
+     * Runs the pipeline on every {series, time point} of a multi-position or time-lapse file, each in a worker of
+     * {@link #THREADS_PER_PART} threads.
+     * <p>
+     * A stack is only read once a worker is free to analyse it, so there is at most one stack per worker in memory
+     * whatever the size of the file. Each stack is analysed as a field of its own, tiled if it is bigger than the tile
+     * size, with its images and results in an S{series}_T{time} folder. Distances.csv then has the rows of every stack
+     * with the series and time point in front.
+     * </p>
+     */
+    private void analyseSeries(List<int[]> stacks, StackTask task) {
+        metrics.start("series");
+        makeOutputDirectory();
+        int concurrent = Math.max(1, Math.min(stacks.size(), threads / THREADS_PER_PART));
+        int partThreads = Math.max(1, threads / concurrent);
+        IJ.log("Analysing " + file.getName() + " as " + stacks.size() + " stacks, " + concurrent + " at a time");
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrent);
+        List<Future<Shelagh_FISH<T>>> futures = new ArrayList<>();
+        for (int[] stack : stacks) {
+            futures.add(pool.submit(() -> {
+                Shelagh_FISH<T> part = newPart("S" + (stack[0] + 1) + "_T" + (stack[1] + 1), partThreads);
+                part.series = stack[0];
+                part.timepoint = stack[1];
+                task.run(part);
+                return part;
+            }));
+        }
+        pool.shutdown();
+
+        //Collect in series and time order whichever finished first
+        List<RunMetrics> partMetrics = new ArrayList<>();
+        resultRows = new ArrayList<>();
+        seriesRows = new ArrayList<>();
+        List<ResultRecords> partRecords = new ArrayList<>();
+        boolean partial = false;
+        long cells = 0;
+        long spots = 0;
+        boolean failed = false;
+        for (int i = 0; i < stacks.size(); i++) {
+            Shelagh_FISH<T> part;
+            try {
+                part = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                fail("Analysis of " + file.getName() + " interrupted");
+                return;
+            } catch (ExecutionException e) {
+                fail("Series " + (stacks.get(i)[0] + 1) + " time " + (stacks.get(i)[1] + 1) + " of "
+                        + file.getName() + " failed: " + e.getCause());
+                failed = true;
+                continue;
+            }
+            if (part.getFailure() != null) {
+                fail("Series " + (stacks.get(i)[0] + 1) + " time " + (stacks.get(i)[1] + 1) + " of "
+                        + file.getName() + " failed: " + part.getFailure());
+                failed = true;
+            }
+            partMetrics.add(part.getMetrics());
+            imageWrites.addAll(part.imageWrites);
+            resultRows.addAll(part.getResultRows());
+            seriesRows.addAll(part.getSeriesRows());
+            //A stack done by a previous run only has its records, or only its rows if it could not write them
+            if (part.getRecords() != null) {
+                partRecords.add(part.getRecords());
+                cells += part.getRecords().getCells().length;
+                spots += part.getRecords().getSpots().length;
+            } else {
+                partial = true;
+            }
+        }
+
+        metrics.start("makeResultsFile");
+        records = ResultRecords.concat(file.getName(), partRecords);
+        writeResults(SERIES_HEADER, seriesRows);
+        //Records missing some stacks are not read back by a resumed run, Distances.csv is
+        if (partial && recordsWritten) {
+            recordsWritten = false;
+            if (!csvResults) {
+                writeDistancesFile(SERIES_HEADER, seriesRows);
+            }
+        }
+        metrics.stop();
+
+        metrics.count("stacks", stacks.size());
+        metrics.count("cells", cells);
+        metrics.count("spots", spots);
+        metrics.count("threads", threads);
+        writeMetrics("SeriesMetrics", partMetrics);
+        //A stack that failed is redone next time, the others are skipped
+        if (!failed) {
+            markResultsDone();
+        }
+    }
+
+    //metrics.json for this run and every part's metrics together
+    private void writeMetrics(String partsName, List<RunMetrics> parts) {
+        try {
+            metrics.write(newFileName("metrics", ".json"));
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(newFileName(partsName, ".json")))) {
+                writer.write(RunMetrics.aggregate(parts));
+            }
+        } catch (IOException e) {
+            IJ.log("Could not write metrics for " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    //A run with the same settings on one part of this file, e.g. a tile or a time point, writing to its own folder
+    private Shelagh_FISH<T> newPart(String name, int partThreads) {
+        Shelagh_FISH<T> part = new Shelagh_FISH<>();
+        part.commandService = commandService;
+        part.file = file;
+        part.tolerance = tolerance;
+        part.toleranceSweep = toleranceSweep;
+        part.spotDetection = spotDetection;
+        part.spotSigma = spotSigma;
+        part.distanceMode = distanceMode;
+        part.segmentation = segmentation;
+        part.cellposeWorkerCommand = cellposeWorkerCommand;
+        part.useSegmentationCache = useSegmentationCache;
+        part.segmentationCacheMB = segmentationCacheMB;
+        part.tileSize = tileSize;
+        part.outputFormat = outputFormat;
+        part.csvResults = csvResults;
+        part.resume = resume;
+        part.fingerprint = fingerprint;
+        part.threads = partThreads;
+        part.segmenter = segmenter;
+        part.series = series;
+        part.timepoint = timepoint;
+        part.outputDirectory = Paths.get(newDirectory, name).toString();
+        part.metrics = new RunMetrics(file.getName() + " " + name);
+        if (progress != null) {
+            part.progress = stage -> progress.accept(name + " " + stage);
+            part.metrics.setListener(part.progress);
+        }
+        return part;
+    }
+
+    //Yen threshold of the whole field's first DAPI slice, background subtracted, as the untiled run takes it. The
+    //slice is read shrunk to OVERVIEW pixels across and the ball radius shrunk with it. Shrinking averages away the
+    //brightest pixels, so there is no upper limit
+    private double[] getFieldThreshold(ChannelLoader loader) throws IOException {
+        ImageProcessor overview;
+        synchronized (loader) {
+            overview = loader.loadOverview(series, timepoint, 2, 0, OVERVIEW);
+        }
+        double shrink = (double) loader.getWidth(series) / overview.getWidth();
+        Background.subtract(new ImagePlus("DAPI overview", overview), Background.RADIUS / shrink, false);
+        return new double[]{yenThreshold(overview)[0], Double.MAX_VALUE};
+    }
+
+    //Reads the padded region of one tile and runs the pipeline on it with the same settings
+    private Shelagh_FISH<T> analyseTile(ChannelLoader loader, Rectangle region, int i, int tileThreads,
+                                        double[] fieldThreshold) throws IOException {
+        ImagePlus impFISH;
+        ImagePlus impDAPI;
+        //There is one reader, so tiles take turns to read
+        synchronized (loader) {
+            impFISH = loader.loadChannel(series, timepoint, 1, region);
+            impDAPI = loader.loadChannel(series, timepoint, 2, region);
+        }
+        Shelagh_FISH<T> tile = newPart("Tile_" + (i + 1), tileThreads);
+        tile.cellThreshold = fieldThreshold;
+        tile.analyse(impFISH, impDAPI);
+        return tile;
+    }
+
+    /**
+     * Parses a list of tolerances such as "1000, 1500, 2000", ranges "start-end:step" can be mixed in.
+     */
+    static double[] parseTolerances(String list) {
+        List<Double> tolerances = new ArrayList<>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int dash = item.indexOf('-', 1);
+            if (dash > 0) {
+                int colon = item.indexOf(':');
+                double start = Double.parseDouble(item.substring(0, dash).trim());
+                double end = Double.parseDouble(item.substring(dash + 1, colon > 0 ? colon : item.length()).trim());
+                double step = colon > 0 ? Double.parseDouble(item.substring(colon + 1).trim()) : end - start;
+                if (step <= 0) {
+                    throw new NumberFormatException("Step must be positive in " + item);
+                }
+                //Count steps rather than adding them up so the end of the range is not lost to rounding
+                long n = (long) Math.floor((end - start) / step + 1e-9);
+                for (long k = 0; k <= n; k++) {
+                    tolerances.add(start + k * step);
+                }
+            } else {
+                tolerances.add(Double.parseDouble(item));
+            }
+        }
+        return tolerances.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    //Smallest and largest of the tolerance and the sweep, the prominences 3D detection has to tell apart
+    private double[] getToleranceRange() {
+        double[] range = {tolerance, tolerance};
+        if (toleranceSweep != null && !toleranceSweep.trim().isEmpty()) {
+            try {
+                for (double sweepTolerance : parseTolerances(toleranceSweep)) {
+                    range[0] = Math.min(range[0], sweepTolerance);
+                    range[1] = Math.max(range[1], sweepTolerance);
+                }
+            } catch (NumberFormatException e) {
+                //Reported when the sweep is made
+            }
+        }
+        return range;
+    }
+
+    //Spots come from the 3D candidates when there are some, otherwise Find Maxima is rerun on the projection
+    private void makeSweepFile(ZMaxProjection projGreen, SpotDetector3D spots3D, ImagePlus dapi,
+                               LabelImage cellLabels, CellMasks cell3D, Roi[] cellOutlines, double[][] DapiStats) {
+        double[] tolerances;
+        try {
+            tolerances = parseTolerances(toleranceSweep);
+        } catch (NumberFormatException e) {
+            IJ.log("Could not read tolerance sweep '" + toleranceSweep + "': " + e.getMessage());
+            return;
+        }
+
+        String CreateName = newFileName("Distances_Sweep", ".csv");
+        IJ.log(CreateName);
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(CreateName))) {
+            bufferedWriter.write("File= ," + file.getName());
+            bufferedWriter.newLine();
+            bufferedWriter.write("Green Threshold, " + RESULTS_HEADER);
+            bufferedWriter.newLine();
+            for (double sweepTolerance : tolerances) {
+                double[][] xyzGreen = spots3D != null ? spots3D.select(sweepTolerance)
+                        : findZPositions(projGreen, dapi, findXYpositions(projGreen.getImage(), sweepTolerance));
+                double[][] xyzCellGreen = whichCell(xyzGreen, cellLabels);
+                double[][] distances = EDGE_DISTANCE.equals(distanceMode)
+                        ? findEdgeDistance(xyzCellGreen, cell3D, cellOutlines, null)
+                        : findDistance(xyzCellGreen, cell3D, cellOutlines, null);
+                for (String row : ResultRecords.of(file.getName(), series, timepoint, sweepTolerance, xyzCellGreen,
+                        xyzGreen, distances, cellOutlines, DapiStats, pixelWidth, pixelHeight, pixelDepth)
+                        .getCsvRows()) {
+                    bufferedWriter.write(sweepTolerance + "," + row);
+                    bufferedWriter.newLine();
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + CreateName + "'");
+        }
+    }
+
+    //Equivalent of Merge Channels... c2=[fish] c4=[dapi] create
+    private ImagePlus merge(ImagePlus fish, ImagePlus dapi) {
+        return RGBStackMerge.mergeChannels(new ImagePlus[]{null, fish, null, dapi}, true);
+    }
+
+    double[][] get3DCellStats(CellMasks cells, ImagePlus imp){
+        double[][] results = new double[cells.getNCells()][4];
+        ImageStack stack = imp.getStack();
+        //Cells are independent, each thread keeps one histogram and every cell writes only its own row
+        ThreadLocal<CellStats> statsPerThread = ThreadLocal.withInitial(CellStats::new);
+        IntStream.range(0, cells.getNCells()).parallel().forEach(i -> {
+            CellStats stats = statsPerThread.get();
             double cellMax = 0;
             double cellMin = Double.MAX_VALUE;
             double cellMean = 0;
-            double cellArea = 0;
             double cellMedian = 0;
-            ArrayList<Double> pixelList = new ArrayList<>();
-            Integer counter = 0;
-            imp.show();
-            for (int j = 0; j< cells[i].length; j++){
-                if(cells[i][j].getType()==4) {
-                    ip.setSliceNumber(j);
-                    ip.setRoi(cells[i][j]);
-//                    double max = ip.getStatistics().max;
-//                    double min = ip.getStatistics().min;
-                    double mean = ip.getStatistics().mean;
-                    ImagePlus slice = new Duplicator().run(imp, 1, 1, j, j, 1, 1);
-                    Img<T> img = ImageJFunctions.wrapReal(slice);
-                    pixelList = getPixelValues(img, cells[i][j],pixelList);
-//                    int minX = cells[i][j].getBounds().getMinX();
-//                    int maxX =
-//                    Point[] pixels = cells[i][j].getContainedPoints();
-//                    for (Point pixel:pixels) {
-//                        pixelList.add(ip.getValue(pixel.x,pixel.y));
-//                        counter++;
-//                    }
-                    double area = ip.getStatistics().area;
-                    cellMean = cellMean + mean*area;
-                    cellArea = cellArea + area;
-                    counter++;
-                }
+            stats.reset();
+            for (int j = 0; j< cells.getNSlices(); j++){
+                //Read the mask pixels straight from the slice array
+                stats.add(stack.getPixels(j + 1), cells.getPixels(i, j));
             }
-            if(counter!=0) {
-                Collections.sort(pixelList);
-                cellMedian = pixelList.get( pixelList.size()/2);
-                cellMax = pixelList.get(pixelList.size()-1);
-                cellMin = pixelList.get(0);
-                cellMean = pixelList.stream().mapToDouble(Double::doubleValue).sum()/ pixelList.size();
+            if(stats.getCount()!=0) {
+                cellMedian = stats.getMedian();
+                cellMax = stats.getMax();
+                cellMin = stats.getMin();
+                cellMean = stats.getMean();
             }
             results[i][0] = cellMax;
             results[i][1] = cellMin;
             results[i][2] = cellMean;
             results[i][3] = cellMedian;
-
-        }
+        });
         return results;
     }
 
-    private void makeResultsFile(double[][] xyzCell, double[][] xyzInt, double[][] distances, Roi[] cells, double[][] DapiStats){
-
-        String CreateName = Paths.get( newDirectory , "Distances.csv").toString();
+    //First of name.csv, name_1.csv, ... that does not exist yet in the output folder
+    private String newFileName(String name, String extension) {
+        String CreateName = Paths.get( newDirectory , name + extension).toString();
+        //A resumed run replaces what the previous one left rather than adding another copy
+        if (resume) {
+            return CreateName;
+        }
         File resultsFile = new File(CreateName);
 
-
         int i = 1;
         while (resultsFile.exists()){
-            CreateName= Paths.get( newDirectory,"Distances_"+i+".csv").toString();
+            CreateName= Paths.get( newDirectory,name + "_"+i+extension).toString();
             resultsFile = new File(CreateName);
             i++;
         }
+        return CreateName;
+    }
+
+    private void makeResultsFile(double[][] xyzCell, double[][] xyzInt, double[][] distances, Roi[] cells, double[][] DapiStats){
+
+        //The typed records first, Distances.csv is a view of them
+        records = ResultRecords.of(file.getName(), series, timepoint, tolerance, xyzCell, xyzInt, distances, cells,
+                DapiStats, pixelWidth, pixelHeight, pixelDepth);
+        resultRows = records.getCsvRows();
+        seriesRows = records.getSeriesCsvRows();
+        writeResults(RESULTS_HEADER, resultRows);
+        IJ.log("Finished");
+    }
+
+    //Distances.csv first, as it only needs ImageJ, then the records. Without the CSV the records are the only results,
+    //so the CSV is written anyway if they cannot be
+    private void writeResults(String header, List<String> rows) {
+        if (csvResults) {
+            writeDistancesFile(header, rows);
+            recordsWritten = writeRecords();
+        } else {
+            recordsWritten = writeRecords();
+            if (!recordsWritten) {
+                writeDistancesFile(header, rows);
+            }
+        }
+    }
+
+    private void writeDistancesFile(String header, List<String> rows) {
+        String CreateName = newFileName("Distances", ".csv");
         IJ.log(CreateName);
-        try{
-            FileWriter fileWriter = new FileWriter(CreateName,true);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(CreateName))) {
             bufferedWriter.newLine();
             bufferedWriter.write("File= ," + file.getName());
             bufferedWriter.newLine();
-            bufferedWriter.write("Green Threshold:, " + tolerance );
+            bufferedWriter.write("Green Threshold:, " + tolerance);
             bufferedWriter.newLine();
-            bufferedWriter.write("Spot, Cell, Cell Width(x), Cell Height(y), Distance, Spot Intensity DAPI, Spot Intensity Green, " +
-                    "Cell Max DAPI, Cell Min DAPI, Cell Mean DAPI, Cell Median DAPI");
+            bufferedWriter.write(header);
             bufferedWriter.newLine();
-            for(int j=0; j<distances.length;j++) {
-                if (distances[j][1]!=0) {
-                    int cellNum = (int)xyzCell[j][3]-1;
-                    double xBounds = cells[cellNum].getStatistics().roiWidth*pixelWidth;
-                    double yBounds = cells[cellNum].getStatistics().roiHeight*pixelHeight;
-                    bufferedWriter.write( j + ","+cellNum+ "," + xBounds + ","+ yBounds +","+ distances[j][7]+
-                            ","+ xyzInt[j][4]+","+xyzInt[j][3]+","+DapiStats[cellNum][0]+","+DapiStats[cellNum][1]+","+DapiStats[cellNum][2]
-                            +","+DapiStats[cellNum][3]);
-                    bufferedWriter.newLine();
-                }
+            for (String row : rows) {
+                bufferedWriter.write(row);
+                bufferedWriter.newLine();
+            }
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + CreateName + "'");
+            if (failure == null) {
+                failure = "Error writing to file '" + CreateName + "'";
             }
-            bufferedWriter.close();
         }
-        catch(IOException ex) {
-            System.out.println(
-                    "Error writing to file '" + CreateName + "'");
+    }
+
+    //Spots.arrow and Cells.arrow with this run's records and settings, false if they could not be written. Arrow is
+    //not part of a stock Fiji and needs add-opens on Java 17, so a missing or unusable Arrow only costs these files
+    private boolean writeRecords() {
+        File spotFile = new File(newFileName(ResultsStore.SPOTS, ResultsStore.EXTENSION));
+        File cellFile = new File(newFileName(ResultsStore.CELLS, ResultsStore.EXTENSION));
+        try (ResultsStore store = ResultsStore.create(spotFile, cellFile, getSettings())) {
+            store.append(records);
+            return true;
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + spotFile + "'");
+            if (failure == null) {
+                failure = "Error writing to file '" + spotFile + "'";
+            }
+        } catch (RuntimeException | LinkageError ex) {
+            IJ.log("Spots.arrow and Cells.arrow not written, Apache Arrow is not available: " + ex);
         }
-        IJ.log("Finished");
+        return false;
     }
 
+    //Both stacks have had their background subtracted
     private void makeSlices(ImagePlus impFISH, ImagePlus impDAPI, double[][] distances, double[][] xyzSpot){
-        IJ.run(impFISH, "Subtract Background...", "rolling=150 stack");
-        impFISH.setTitle("FISH");
-        impFISH.show();
-        impDAPI.setTitle("DAPI");
-        int count = 1;
-        ImagePlus reslices = new ImagePlus();
+        //Spots that have a line to reslice along, and the widest line
+        List<Integer> spots = new ArrayList<>();
+        int width = 1;
         for (int i = 0; i< distances.length; i++ ){
             if(distances[i][0]!=0){
-                Line lineScan = new Line(distances[i][0],distances[i][1],distances[i][2],distances[i][3]);
-                impDAPI.setRoi(lineScan);
-                IJ.run(impDAPI, "Reslice [/]...", "output="+pixelDepth+" slice_count=1");
-                ImagePlus impDAPISlice = WindowManager.getCurrentImage();
-                impDAPISlice.setTitle("DAPI_Slice");
-                IJ.run(impDAPISlice, "Enhance Contrast", "saturated=0.35");
-                impFISH.setRoi(lineScan);
-                IJ.run(impFISH, "Reslice [/]...", "output="+pixelDepth+" slice_count=1");
-                ImagePlus impFishSlice = WindowManager.getCurrentImage();
-                setImageNumbersLinesSlice(impFishSlice,distances[i],xyzSpot[i], i);
-                impFishSlice.setTitle("FISH_Slice");
-                IJ.run(impFishSlice, "Enhance Contrast", "saturated=0.35");
-                IJ.run("Merge Channels...", "c2=[FISH_Slice] c4=[DAPI_Slice] create");
-                ImagePlus reslice = WindowManager.getCurrentImage();
-                reslice.setTitle("Reslice "+count);
-                if(count==1){
-                    reslices = reslice;
-                }else{
-                    reslices = Concatenator.run(reslices,reslice);
-                }
-                count++;
-                String CreateName = Paths.get( newDirectory, "Z_slices").toString();
-                IJ.saveAs(reslices, "Tiff", CreateName);
+                spots.add(i);
+                width = Math.max(width, LineReslicer.getLength(distances[i][0],distances[i][1],distances[i][2],distances[i][3]));
             }
         }
+        if (spots.isEmpty()) {
+            return;
+        }
+
+        //Sample and annotate every section straight into one FISH/DAPI stack
+        LineReslicer fishSampler = new LineReslicer(impFISH, pixelDepth/pixelWidth);
+        LineReslicer dapiSampler = new LineReslicer(impDAPI, pixelDepth/pixelWidth);
+        int height = fishSampler.getHeight();
+        ImageStack stack = new ImageStack(width, height);
+        for (int i : spots) {
+            ImageProcessor fishSlice = impFISH.getProcessor().createProcessor(width, height);
+            fishSampler.sample(distances[i][0],distances[i][1],distances[i][2],distances[i][3], fishSlice);
+            fishSlice.resetMinAndMax();
+            setImageNumbersLinesSlice(fishSlice,distances[i],xyzSpot[i], i);
+            ImageProcessor dapiSlice = impDAPI.getProcessor().createProcessor(width, height);
+            dapiSampler.sample(distances[i][0],distances[i][1],distances[i][2],distances[i][3], dapiSlice);
+            stack.addSlice("FISH Spot " + i, fishSlice);
+            stack.addSlice("DAPI Spot " + i, dapiSlice);
+        }
+
+        //FISH green and DAPI grey, one frame per spot, as the merged and concatenated reslices were
+        ImagePlus sections = new ImagePlus("Z_slices", stack);
+        sections.setDimensions(2, 1, spots.size());
+        sections.getCalibration().pixelWidth = pixelWidth;
+        sections.getCalibration().pixelHeight = pixelWidth;
+        CompositeImage reslices = new CompositeImage(sections, IJ.COMPOSITE);
+        reslices.setChannelLut(LUT.createLutFromColor(Color.green), 1);
+        reslices.setChannelLut(LUT.createLutFromColor(Color.white), 2);
+        for (int c = 1; c <= 2; c++) {
+            reslices.setC(c);
+            new ContrastEnhancer().stretchHistogram(reslices, 0.35);
+        }
+
+        //Written once all spots are done
+        String CreateName = Paths.get( newDirectory, "Z_slices").toString();
+        imageWrites.add(OutputWriter.shared().write(reslices, CreateName, outputFormat));
     }
 
-    private void setImageNumbersLinesSlice(ImagePlus imp, double[] distances, double[] spot, int i){
-        IJ.setForegroundColor(255, 255, 255);
+    private void setImageNumbersLinesSlice(ImageProcessor ip, double[] distances, double[] spot, int i){
         double resliceRatio = pixelWidth/pixelDepth;
-        int y = imp.getDimensions()[1];
-        ImageProcessor ip = imp.getProcessor();
         Font font = new Font("SansSerif", Font.BOLD, 10);
         DecimalFormat df = new DecimalFormat("#.##");
         df.setRoundingMode(RoundingMode.HALF_DOWN);
@@ -342,14 +1270,11 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         ip.drawString(spotNumber, 10, 20);
         ip.setLineWidth(1);
         ip.drawLine(spotx,spoty,xpos,ypos);
-        imp.updateAndDraw();
 
     }
 
-    private double[][] findXYpositions(ImagePlus channel, double tolerance) {
-        ImagePlus channelZproject = ZProjector.run(channel, "max");
+    double[][] findXYpositions(ImagePlus channelZproject, double tolerance) {
         channelZproject.setTitle("Green" +" Z-project");
-        channelZproject.show();
         ImageProcessor ip = channelZproject.getProcessor();
         MaximumFinder maxFinder = new MaximumFinder();
         Polygon maxima = maxFinder.getMaxima(ip, tolerance, true);
@@ -364,151 +1289,218 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         return xy;
     }
 
-    private double[][] findZPositions(ImagePlus channel, ImagePlus DAPI, double[][] xyPositions) {
+    double[][] findZPositions(ZMaxProjection channel, ImagePlus DAPI, double[][] xyPositions) {
 
         double[][] zPositions = new double[xyPositions.length][5];
-        ImagePlus dapi = DAPI.duplicate();
-        dapi.show();
-        ImageProcessor dapiIP = dapi.getProcessor();
-        ImageProcessor channelIP = channel.getProcessor();
+        ImageStack dapiStack = DAPI.getStack();
         for (int i = 0; i < xyPositions.length; i++) {
-            double maxIntensity = 0;
+            int x = (int) xyPositions[i][0];
+            int y = (int) xyPositions[i][1];
             zPositions[i][0] = xyPositions[i][0];
             zPositions[i][1] = xyPositions[i][1];
-            for (int j = 0; j < channel.getNSlices(); j++) {
-                channel.setSlice(j);
-                double intensity = channelIP.getPixelValue((int)xyPositions[i][0],(int)xyPositions[i][1]);
-                if (intensity > maxIntensity) {
-                    maxIntensity = intensity;
-                    zPositions[i][2] = j;
-                    zPositions[i][3] = maxIntensity;
-                    dapi.setSlice(j);
-                    zPositions[i][4] = dapiIP.getPixelValue((int)xyPositions[i][0],(int)xyPositions[i][1]);
-                }
-
+            double maxIntensity = channel.getValue(x, y);
+            //A spot that is never above zero keeps z = 0 and no intensities
+            if (maxIntensity > 0) {
+                int z = channel.getSlice(x, y);
+                zPositions[i][2] = z;
+                zPositions[i][3] = maxIntensity;
+                zPositions[i][4] = dapiStack.getVoxel(x, y, z);
             }
         }
         return zPositions;
     }
 
-    private Roi[] findCellOutlines(ImagePlus channel){
+    private LabelImage findCellOutlines(ImagePlus projection){
 
-        IJ.run(channel, "Z Project...", "projection=[Max Intensity]");
-        projDAPI = WindowManager.getCurrentImage();
-        IJ.run("Cellpose Advanced", "diameter=" + 100 + " cellproba_threshold=" + 0.0 + " flow_threshold=" + 0.4
-                + " anisotropy=" + 1.0 + " diam_threshold=" + 12.0 +  " model=" + "cyto2" + " nuclei_channel=" + 0
-                + " cyto_channel=" + 1 + " dimensionmode=" + "2D" + " stitch_threshold=" + -1 + " omni=" + false
-                + " cluster=" + false + " additional_flags="+"" );
-        return getROIsfromMask();
-    }
+        Segmenter segmenter = createSegmenter();
+
+        //Skip segmentation if this projection has been segmented with the same settings before
+        SegmentationCache cache = null;
+        String key = null;
+        if (useSegmentationCache) {
+            cache = new SegmentationCache(SegmentationCache.DEFAULT_DIRECTORY, segmentationCacheMB * 1024L * 1024L);
+            key = SegmentationCache.key(projection, segmenter.getSettings());
+            LabelImage cached = cache.get(key);
+            if (cached != null) {
+                IJ.log("Using cached segmentation for " + file.getName());
+                return cached;
+            }
+        }
 
-    private Roi[] getROIsfromMask() {
+        try {
+            LabelImage labels = segmenter.segment(projection);
+            if (cache != null) {
+                cache.put(key, labels);
+            }
+            return labels;
+        } catch (IOException e) {
+            fail("Segmentation failed on " + file.getName() + ": " + e.getMessage());
+            return LabelImage.empty(projection.getWidth(), projection.getHeight());
+        }
+    }
 
-        //Gets the current image (the mask output from cellpose)
-        ImagePlus mask = WindowManager.getCurrentImage();
-        ImageStatistics stats = mask.getStatistics();
-        //For each ROI (intensity per cell mask is +1 to intensity
-        for (int i = 1; i < stats.max + 1; i++) {
-            //Set the threshold for the cell and use analyse particles to add to ROI manager
-            IJ.setThreshold(mask, i, i);
-            IJ.run(mask, "Analyze Particles...", "add");
+    private Segmenter createSegmenter() {
+        if (segmenter != null) {
+            return segmenter;
         }
-        Roi[] outlines = roiManager.getRoisAsArray();
-        roiManager.reset();
-        return outlines;
+        Map<String, Object> settings = CellposePluginSegmenter.defaultSettings();
+        if (CELLPOSE_WORKER.equals(segmentation)) {
+            String command = cellposeWorkerCommand == null || cellposeWorkerCommand.trim().isEmpty()
+                    ? CellposeWorker.DEFAULT_COMMAND : cellposeWorkerCommand;
+            return CellposeWorker.shared(command, settings, WORKER_BATCH_SIZE);
+        }
+        if (WATERSHED.equals(segmentation)) {
+            return new WatershedSegmenter(((Number) settings.get("diameter")).doubleValue(), 2);
+        }
+        return new CellposePluginSegmenter(commandService, settings);
     }
 
-    private double[][] whichCell(double[][] xyz, Roi[] outlines) {
+    double[][] whichCell(double[][] xyz, LabelImage cells) {
 
         double[][] xyzCell = new double[xyz.length][4];
         for (int i = 0; i < xyz.length; i++) {
             xyzCell[i][0] = xyz[i][0];
             xyzCell[i][1] = xyz[i][1];
             xyzCell[i][2] = xyz[i][2];
-            for (int j = 0; j < outlines.length; j++) {
-                if (outlines[j].contains((int) xyz[i][0], (int) xyz[i][1])) {
-                    xyzCell[i][3] = j + 1;
-                }
-            }
-
+            //Label i+1 is cell i, 0 is outside every cell
+            xyzCell[i][3] = cells.getLabel((int) xyz[i][0], (int) xyz[i][1]);
         }
         return xyzCell;
     }
 
-    private Roi[][] get3DCellROIs(Roi[] outlines, ImagePlus imp){
-        imp.show();
-        imp.setZ(0);
-        IJ.run(imp, "Subtract Background...", "rolling=150 stack");
-        imp.setDisplayMode(IJ.GRAYSCALE);
-        ImageProcessor ip = imp.getProcessor();
-
-        IJ.setAutoThreshold(imp, "Yen dark no-reset");
-        Roi[][] outputCells = new Roi[outlines.length][imp.getNSlices()];
-        //for each outline,
-        for(int i = 0; i< outlines.length; i++) {
-        //Go through the stack
-            for (int j = 0; j < imp.getNSlices(); j++) {
-                imp.setRoi(outlines[i]);
-                imp.setZ(j);
-                IJ.run(imp, "Analyze Particles...", "size=100-Infinity pixel add slice");
-                Roi[] rois = roiManager.getRoisAsArray();
-                Roi output;
-                if (rois.length > 0) {
-                    output = rois[0];
-                    for (Roi roi : rois) {
-                        if (roi.getStatistics().area > output.getStatistics().area) {
-                            output = roi;
-                        }
-                    }
-                } else {
-                    output = new PointRoi(outlines[i].getContourCentroid()[0], outlines[i].getContourCentroid()[1]);
-                }
-                drawRoi(output,imp,j,i,(int)outlines[i].getContourCentroid()[0],(int)outlines[i].getContourCentroid()[1]);
-                outputCells[i][j] = output;
-                roiManager.reset();
+    //imp is the background subtracted DAPI stack, the outlines are drawn on to it
+    CellMasks get3DCellROIs(Roi[] outlines, LabelImage cellLabels, ImagePlus imp){
+        ImageStack stack = imp.getStack();
+
+        //Yen threshold taken from the first slice and applied to the whole stack
+        double[] threshold = cellThreshold != null ? cellThreshold : yenThreshold(stack.getProcessor(1));
+
+        //Label the whole stack in one pass and keep the largest particle of at least 100 pixels per cell and slice
+        CellMasks cells = CellMasks.label(stack, cellLabels.getLabels(), cellLabels.getCount(), threshold[0],
+                threshold[1], 100);
+
+        //Trace the outlines of every cell in parallel, or mark the cell centre where nothing was found
+        double[][] centroids = getCentroids(outlines);
+        Roi[][] rois = new Roi[outlines.length][stack.getSize()];
+        IntStream.range(0, outlines.length).parallel().forEach(i -> {
+            for (int j = 0; j < stack.getSize(); j++) {
+                Roi output = cells.getRoi(i, j);
+                rois[i][j] = output != null ? output : new PointRoi(centroids[i][0], centroids[i][1]);
+            }
+        });
+
+        //Then draw them in cell order so overlapping labels come out the same every run
+        for (int i = 0; i < outlines.length; i++) {
+            for (int j = 0; j < stack.getSize(); j++) {
+                drawRoi(rois[i][j], stack.getProcessor(j + 1), i, (int) centroids[i][0], (int) centroids[i][1]);
             }
         }
 
-        return outputCells;
-        //Return the Array of Roi Arrays
+        return cells;
+    }
+
+    private static double[] yenThreshold(ImageProcessor ip) {
+        ip.setAutoThreshold("Yen dark no-reset");
+        double[] threshold = {ip.getMinThreshold(), ip.getMaxThreshold()};
+        ip.resetThreshold();
+        return threshold;
     }
 
-    private double[][] findDistance(double[][] xyzCell, Roi[][] cell3D, Roi[] outline){
+    double[][] findDistance(double[][] xyzCell, CellMasks cell3D, Roi[] outline, ImageProcessor overview){
         //for each point
         double[][] output = new double[xyzCell.length][8];
         //output 1-4 start and end of the line to be sliced, output 5-7 xyz position of nearest intersect, output 8 distance from spot
-        for(int i = 0; i< xyzCell.length; i++) {
+        double[][] centroids = getCentroids(outline);
+        IntStream.range(0, xyzCell.length).parallel().forEach(i -> {
             if(xyzCell[i][3]!= 0){
                 int cell = (int) xyzCell[i][3]-1;
                 double x_spot = xyzCell[i][0];
                 double y_spot = xyzCell[i][1];
-                double x_outline = outline[cell].getContourCentroid()[0];
-                double y_outline = outline[cell].getContourCentroid()[1];
+                double x_outline = centroids[cell][0];
+                double y_outline = centroids[cell][1];
                 double[] line = get2Dline(x_spot,y_spot,x_outline,y_outline);
                 System.arraycopy(line,0, output[i],0,4);
-                Line lineScan = new Line(line[0],line[1],line[2],line[3]);
-                double[][] intersects = getIntersects(line, cell3D[cell]);
-                double[] nearestIntersect = getNearestIntersect(intersects, xyzCell[i], outline[cell]);
+                double[][] intersects = getIntersects(line, cell3D, cell);
+                double[] nearestIntersect = getNearestIntersect(intersects, xyzCell[i], centroids[cell]);
                 System.arraycopy(nearestIntersect,0, output[i],4,4);
-                projDAPI.setRoi(lineScan);
-                line[2] = nearestIntersect[0];
-                line[3] = nearestIntersect[1];
-                setImageNumbersLines(line, i);
             }
             //Find line in z between cell outline centre and the spot
             //For each Roi
             //look along the line for points that cross the Roi
             //if there is a point find the x-y-z distance to the spot
+        });
+
+        //Draw from the cell centre to the intersect, in spot order
+        if (overview != null) {
+            for (int i = 0; i < xyzCell.length; i++) {
+                if (xyzCell[i][3] != 0) {
+                    setImageNumbersLines(overview, new double[]{output[i][0], output[i][1], output[i][4], output[i][5]}, i);
+                }
+            }
         }
         return output;
     }
 
-    private double[] getNearestIntersect(double[][] intersects, double[] xyzSpot, Roi cell){
+    double[][] findEdgeDistance(double[][] xyzCell, CellMasks cell3D, Roi[] outline, ImageProcessor overview){
+        //Same layout as findDistance, output 5-7 is the nearest edge voxel of the nucleus in 3D and output 8 its distance
+        double[][] output = new double[xyzCell.length][8];
+        //The distance map of a cell is only built once a spot in it needs it, then kept for the whole run
+        EdgeDistanceMap[] maps = edgeMaps;
+        boolean[] needed = new boolean[maps.length];
+        for (double[] spot : xyzCell) {
+            if (spot[3] != 0) {
+                needed[(int) spot[3] - 1] = true;
+            }
+        }
+        IntStream.range(0, maps.length).parallel().filter(cell -> needed[cell] && maps[cell] == null)
+                .forEach(cell -> maps[cell] = EdgeDistanceMap.of(cell3D, cell, outline[cell].getBounds(),
+                        pixelWidth, pixelHeight, pixelDepth));
+
+        double[][] centroids = getCentroids(outline);
+        IntStream.range(0, xyzCell.length).parallel().forEach(i -> {
+            if(xyzCell[i][3]!= 0){
+                int cell = (int) xyzCell[i][3]-1;
+                int x = (int) xyzCell[i][0];
+                int y = (int) xyzCell[i][1];
+                int z = (int) xyzCell[i][2];
+                double distance = maps[cell].getDistance(x, y, z);
+                if (Double.isNaN(distance) || Double.isInfinite(distance)) {
+                    //No edge site in the cell's mask, the line stays 0 so the spot has no distance as in findDistance
+                    output[i][7] = Double.NaN;
+                    return;
+                }
+                double x_outline = centroids[cell][0];
+                double y_outline = centroids[cell][1];
+                double[] line = get2Dline(xyzCell[i][0],xyzCell[i][1],x_outline,y_outline);
+                System.arraycopy(line,0, output[i],0,4);
+                int[] edge = maps[cell].getNearestEdge(x, y, z);
+                output[i][7] = distance;
+                if (edge != null) {
+                    output[i][4] = edge[0];
+                    output[i][5] = edge[1];
+                    output[i][6] = edge[2];
+                }
+            }
+        });
+
+        //Draw from the spot to its nearest edge, in spot order
+        if (overview != null) {
+            for (int i = 0; i < xyzCell.length; i++) {
+                if (xyzCell[i][3] != 0 && !Double.isNaN(output[i][7])) {
+                    setImageNumbersLines(overview, new double[]{(int) xyzCell[i][0], (int) xyzCell[i][1],
+                            output[i][4], output[i][5]}, i);
+                }
+            }
+        }
+        return output;
+    }
+
+    double[] getNearestIntersect(double[][] intersects, double[] xyzSpot, double[] centroid){
 
         double[] xyzIntersect = new double[4];
         xyzIntersect[3] = Double.MAX_VALUE;
-        double xcell = cell.getContourCentroid()[0];
-        double ycell = cell.getContourCentroid()[1];
+        double xcell = centroid[0];
+        double ycell = centroid[1];
         for(int i = 0; i< intersects.length; i++){
             if(xyzSpot[0]!=xcell || xyzSpot[1]!=ycell) {
                 double x = pixelWidth * (xyzSpot[0] - intersects[i][0]);
@@ -526,19 +1518,28 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         return xyzIntersect;
     }
 
-    private double[][] getIntersects(double[] line, Roi[] cell){
-        double[][] positions = new double[cell.length][2];
+    //Centre of every outline, worked out up front so parallel tasks only ever read plain arrays
+    private double[][] getCentroids(Roi[] outlines) {
+        double[][] centroids = new double[outlines.length][];
+        for (int i = 0; i < outlines.length; i++) {
+            centroids[i] = outlines[i].getContourCentroid();
+        }
+        return centroids;
+    }
+
+    double[][] getIntersects(double[] line, CellMasks cells, int cell){
+        double[][] positions = new double[cells.getNSlices()][2];
         Line lineScan = new Line(line[0], line[1], line[2], line[3]);
         Point[] linePoints = lineScan.getContainedPoints();
-        for (int i = 0; i < cell.length; i++) {
-            if (cell[i].getType() == 4) {
+        for (int i = 0; i < cells.getNSlices(); i++) {
+            if (!cells.isEmpty(cell, i)) {
                 boolean changed = false;
                 int j = 0;
-                boolean start = cell[i].containsPoint(linePoints[0].x, linePoints[0].y);
+                boolean start = cells.contains(cell, i, linePoints[0].x, linePoints[0].y);
                 while (!changed && j < linePoints.length) {
                     positions[i][0] = linePoints[j].x;
                     positions[i][1] = linePoints[j].y;
-                    boolean inside = cell[i].containsPoint(linePoints[j].x, linePoints[j].y);
+                    boolean inside = cells.contains(cell, i, linePoints[j].x, linePoints[j].y);
                     if (start != inside) {
                         changed = true;
                     }
@@ -549,7 +1550,7 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         return positions;
     }
 
-    private double[] get2Dline(double x, double y, double xCell, double yCell) {
+    double[] get2Dline(double x, double y, double xCell, double yCell) {
 
         double angle = Math.atan((yCell-y)/(xCell-x));
         double deltaX = (double) 100 *Math.cos(angle);
@@ -567,21 +1568,15 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         return new double[]{xCell, yCell,lineEndX,lineEndY};
     }
 
-    private void drawRoi(Roi roi, ImagePlus imp, int zslice, int cell, int xpos, int ypos){
-        IJ.setForegroundColor(255, 255, 255);
-        ImageProcessor ip = imp.getProcessor();
-        ip.setSliceNumber(zslice);
+    private void drawRoi(Roi roi, ImageProcessor ip, int cell, int xpos, int ypos){
         Font font = new Font("SansSerif", Font.BOLD, 14);
         ip.setFont(font);
         ip.setColor(Color.white);
         ip.drawString(String.valueOf(cell), xpos, ypos);
         ip.draw(roi);
-        imp.updateAndDraw();
     }
 
-    private void setImageNumbersLines(double[] positions, double i){
-        IJ.setForegroundColor(255, 255, 255);
-        ImageProcessor ip = projDAPI.getProcessor();
+    private void setImageNumbersLines(ImageProcessor ip, double[] positions, double i){
         Font font = new Font("SansSerif", Font.BOLD, 10);
         DecimalFormat df = new DecimalFormat("#.##");
         df.setRoundingMode(RoundingMode.HALF_DOWN);
@@ -593,8 +1588,6 @@ public class Shelagh_FISH<T extends RealType<T>> implements Command {
         ip.drawString(number, xpos, ypos);
         ip.setLineWidth(1);
         ip.drawLine((int)positions[0],(int)positions[1],(int)positions[2],(int)positions[3]);
-
-        projDAPI.updateAndDraw();
     }
 
     /**
@@ -0,0 +1,319 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs {@link Shelagh_FISH} on every file in a folder that matches a glob, several files at a time.
+ * <p>
+ * Each file gets its own _Output folder as in a single run and the rows of every Distances.csv are
+ * collected into one summary file in the input folder.
+ * </p>
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Users Plugins>Shelagh FISH Batch")
+public class Shelagh_FISH_Batch implements Command {
+
+    @Parameter
+    private CommandService commandService;
+
+    @Parameter(label = "Input folder: ", style = "directory")
+    public File directory;
+
+    @Parameter(label = "File pattern: ", description = "Glob relative to the input folder, e.g. *.tif or **/*.nd2")
+    public String pattern = "*.tif";
+
+    @Parameter(label = "FISH Tolerance: ")
+    public double tolerance;
+
+    @Parameter(label = "Tolerance sweep: ", required = false,
+            description = "Extra tolerances for each Distances_Sweep.csv, e.g. 1000,1500,2000 or 1000-3000:500")
+    public String toleranceSweep = "";
+
+    @Parameter(label = "Spot detection: ", choices = {Shelagh_FISH.SPOTS_3D, Shelagh_FISH.SPOTS_PROJECTION},
+            description = "3D keeps spots stacked in Z apart, the projection is the original method")
+    public String spotDetection = Shelagh_FISH.SPOTS_3D;
+
+    @Parameter(label = "Spot size (pixels): ", min = "0.5",
+            description = "Gaussian sigma of a FISH spot in XY, used by 3D spot detection")
+    public double spotSigma = 1.5;
+
+    @Parameter(label = "Distance to edge: ", choices = {Shelagh_FISH.LINE_DISTANCE, Shelagh_FISH.EDGE_DISTANCE})
+    public String distanceMode = Shelagh_FISH.LINE_DISTANCE;
+
+    @Parameter(label = "Segmentation: ", choices = {Shelagh_FISH.CELLPOSE_PLUGIN, Shelagh_FISH.CELLPOSE_WORKER,
+            Shelagh_FISH.WATERSHED})
+    public String segmentation = Shelagh_FISH.CELLPOSE_PLUGIN;
+
+    @Parameter(label = "Cellpose worker command: ", required = false,
+            description = "Command that starts the worker, {script} is replaced by the bundled cellpose_worker.py")
+    public String cellposeWorkerCommand = CellposeWorker.DEFAULT_COMMAND;
+
+    @Parameter(label = "Reuse cached segmentation: ")
+    public boolean useSegmentationCache = true;
+
+    @Parameter(label = "Segmentation cache size (MB): ", min = "1")
+    public int segmentationCacheMB = 1024;
+
+    @Parameter(label = "Tile size (pixels, 0 for whole field): ", min = "0",
+            description = "Fields wider or taller than this are analysed tile by tile, e.g. 2048 for stitched scans")
+    public int tileSize = 0;
+
+    @Parameter(label = "Output images: ", choices = {OutputWriter.TIFF, OutputWriter.TIFF_LZW, OutputWriter.TIFF_ZLIB,
+            OutputWriter.OME_ZARR})
+    public String outputFormat = OutputWriter.TIFF;
+
+    @Parameter(label = "Also write CSV files: ", description = "Results always go to Spots.arrow and Cells.arrow, "
+            + "this adds each Distances.csv and Summary.csv")
+    public boolean csvResults = true;
+
+    @Parameter(label = "Resume: ", description = "Skip files a previous batch with the same settings finished and "
+            + "pick up the rest where they stopped")
+    public boolean resume = true;
+
+    @Parameter(label = "Workers: ", min = "1")
+    public int workers = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "Combine metrics: ", description = "Also write the stage timings of every file to one Metrics.json")
+    public boolean aggregateMetrics = true;
+
+    @Override
+    public void run() {
+
+        //Find the files to process
+        List<File> files = findFiles(directory, pattern);
+        IJ.log("Found " + files.size() + " files matching " + pattern);
+        if (files.isEmpty()) {
+            return;
+        }
+
+        //Run the pipeline on each file, workers at a time
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        List<Future<Shelagh_FISH<?>>> futures = new ArrayList<>();
+        for (File input : files) {
+            futures.add(pool.submit(() -> processFile(input)));
+        }
+        pool.shutdown();
+
+        //Collect the rows in file order so the summary does not depend on which worker finished first, and append
+        //each file's records to the batch's Spots.arrow and Cells.arrow as they come
+        List<String> summaryRows = new ArrayList<>();
+        List<RunMetrics> metrics = new ArrayList<>();
+        File spotFile = new File(newFileName(ResultsStore.SPOTS, ResultsStore.EXTENSION));
+        File cellFile = new File(newFileName(ResultsStore.CELLS, ResultsStore.EXTENSION));
+        ResultsStore store = createStore(spotFile, cellFile);
+        boolean stored;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    Shelagh_FISH<?> result = futures.get(i).get();
+                    //Only its rows, records and metrics are kept, not the file's stacks and tables
+                    futures.set(i, null);
+                    for (String row : result.getSeriesRows()) {
+                        summaryRows.add(files.get(i).getName() + "," + row);
+                    }
+                    if (store != null && result.getRecords() != null) {
+                        store = append(store, result.getRecords(), spotFile);
+                    }
+                    if (result.getMetrics() != null) {
+                        metrics.add(result.getMetrics());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pool.shutdownNow();
+                    IJ.log("Batch interrupted");
+                    return;
+                } catch (ExecutionException e) {
+                    IJ.log("Failed on " + files.get(i).getName() + ": " + e.getCause());
+                }
+            }
+        } finally {
+            stored = closeStore(store, spotFile);
+        }
+        //Each file's images are written while the next files run, wait for the last of them
+        OutputWriter.shared().flush();
+        if (csvResults || !stored) {
+            makeSummaryFile(summaryRows);
+        }
+        IJ.log("Batch finished");
+        if (aggregateMetrics) {
+            makeMetricsFile(metrics);
+        }
+    }
+
+    //The batch's Spots.arrow and Cells.arrow, or null if Arrow is missing or unusable, which only costs those files
+    private ResultsStore createStore(File spotFile, File cellFile) {
+        try {
+            return ResultsStore.create(spotFile, cellFile, getSettings());
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + spotFile + "'");
+        } catch (RuntimeException | LinkageError ex) {
+            IJ.log("Spots.arrow and Cells.arrow not written, Apache Arrow is not available: " + ex);
+        }
+        return null;
+    }
+
+    //Returns the store, or null once it has failed so the remaining files go to the summary only
+    private static ResultsStore append(ResultsStore store, ResultRecords records, File spotFile) {
+        try {
+            store.append(records);
+            return store;
+        } catch (IOException | RuntimeException | LinkageError ex) {
+            System.out.println("Error writing to file '" + spotFile + "'");
+            closeStore(store, spotFile);
+            return null;
+        }
+    }
+
+    //True if the Arrow files were written in full
+    private static boolean closeStore(ResultsStore store, File spotFile) {
+        if (store == null) {
+            return false;
+        }
+        try {
+            store.close();
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Error writing to file '" + spotFile + "'");
+            return false;
+        }
+    }
+
+    private Shelagh_FISH<?> processFile(File input) throws InterruptedException, ExecutionException {
+        IJ.log("Processing " + input.getName());
+        //Share the cores between the files running at once
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, workers));
+        CommandModule module = commandService.run(Shelagh_FISH.class, false,
+                "file", input, "tolerance", tolerance, "toleranceSweep", toleranceSweep,
+                "spotDetection", spotDetection, "spotSigma", spotSigma, "distanceMode", distanceMode,
+                "threads", threads, "segmentation", segmentation, "cellposeWorkerCommand", cellposeWorkerCommand,
+                "useSegmentationCache", useSegmentationCache, "segmentationCacheMB", segmentationCacheMB,
+                "tileSize", tileSize,
+                "outputFormat", outputFormat, "csvResults", csvResults, "resume", resume,
+                "waitForOutput", false).get();
+        return (Shelagh_FISH<?>) module.getCommand();
+    }
+
+    static List<File> findFiles(File directory, String pattern) {
+        Path root = directory.toPath();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(root.relativize(path)))
+                    .filter(path -> !isOutput(root.relativize(path)))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            IJ.log("Could not list " + directory + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    //Skip anything written by a previous run
+    private static boolean isOutput(Path relative) {
+        for (Path part : relative) {
+            if (part.toString().endsWith("_Output")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void makeSummaryFile(List<String> rows) {
+
+        String CreateName = newFileName("Summary", ".csv");
+        IJ.log(CreateName);
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(CreateName))) {
+            bufferedWriter.write("Green Threshold:, " + tolerance);
+            bufferedWriter.newLine();
+            bufferedWriter.write("File, " + Shelagh_FISH.SERIES_HEADER);
+            bufferedWriter.newLine();
+            for (String row : rows) {
+                bufferedWriter.write(row);
+                bufferedWriter.newLine();
+            }
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + CreateName + "'");
+        }
+    }
+
+    private void makeMetricsFile(List<RunMetrics> metrics) {
+        String CreateName = newFileName("Metrics", ".json");
+        IJ.log(CreateName);
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(CreateName))) {
+            bufferedWriter.write(RunMetrics.aggregate(metrics));
+        } catch (IOException ex) {
+            System.out.println("Error writing to file '" + CreateName + "'");
+        }
+    }
+
+    //A free name in the input folder, or the plain name when resuming so a rerun replaces the last batch's file
+    private String newFileName(String name, String extension) {
+        String CreateName = Paths.get(directory.getAbsolutePath(), name + extension).toString();
+        int i = 1;
+        while (!resume && new File(CreateName).exists()) {
+            CreateName = Paths.get(directory.getAbsolutePath(), name + "_" + i + extension).toString();
+            i++;
+        }
+        return CreateName;
+    }
+
+    //The batch's settings, kept with its records
+    private Map<String, Object> getSettings() {
+        Map<String, Object> settings = new TreeMap<>();
+        settings.put("pattern", pattern);
+        settings.put("tolerance", tolerance);
+        settings.put("toleranceSweep", toleranceSweep);
+        settings.put("spotDetection", spotDetection);
+        settings.put("spotSigma", spotSigma);
+        settings.put("distanceMode", distanceMode);
+        settings.put("segmentation", segmentation);
+        settings.put("cellposeWorkerCommand", cellposeWorkerCommand);
+        settings.put("tileSize", tileSize);
+        return settings;
+    }
+
+    /**
+     * This main function serves for development purposes.
+     *
+     * @param args whatever, it's ignored
+     * @throws Exception
+     */
+    public static void main(final String... args) throws Exception {
+        final net.imagej.ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(Shelagh_FISH_Batch.class, true);
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.IJ;
+import net.imagej.ImageJ;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps one ImageJ context warm and runs {@link Shelagh_FISH} jobs sent to it, so small stacks do not each pay for
+ * starting Java, ImageJ and the plugin.
+ * <p>
+ * Jobs come from a port on localhost, one line per job, and from *.job files dropped in a watched folder. A job is
+ * the plugin's parameters by name, the file and the tolerance at least. Jobs run on a fixed number of workers, the
+ * cores shared between them, with a bounded queue; a job that does not fit is turned away and can be sent again. The
+ * progress of each job (every stage as it starts) and, at the end, its wall time and metrics are sent back to the
+ * client that sent it or written next to its job file. The images of a job are written in the background while the
+ * worker goes on to the next job; the job is done once they are on disk. A job fails if the plugin reports a failure,
+ * e.g. a file it could not read or a stack that failed, or if it throws anything at all.
+ * </p>
+ * <p>
+ * The port takes these lines:
+ * <ul>
+ *     <li>AUTH token, first on every connection, with the token the service wrote to its token file. Replies OK, or
+ *     DENIED and closes the connection.</li>
+ *     <li>RUN file=...&lt;tab&gt;tolerance=...&lt;tab&gt;... replies ACCEPTED id or REJECTED reason, then sends
+ *     RUNNING id, PROGRESS id stage, and DONE id seconds metrics or FAILED id reason on the same connection.</li>
+ *     <li>STATUS replies JOB id state stage file for every job it knows, then END.</li>
+ *     <li>SHUTDOWN stops taking jobs, finishes those it has and ends the service.</li>
+ * </ul>
+ * Anything else, e.g. the request line of a browser's POST to the port, closes the connection. The token file is
+ * only readable by the user running the service, so other local users and web pages cannot send jobs. The
+ * segmentation and the Cellpose worker command are the service's own, set when it starts; a job that sets either is
+ * turned away, as the worker command is run as a process.
+ * A job file has the same parameters in Java properties format. It is renamed to .running when taken and to .done or
+ * .failed at the end, and the latest progress line is kept in a .status file beside it. Write a job file under
+ * another name and rename it to .job, so it is never read half written. A job file that cannot be read is renamed to
+ * .failed with the reason in its .status file.
+ * </p>
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Users Plugins>Shelagh FISH Service")
+public class Shelagh_FISH_Service implements Command {
+
+    static final int DEFAULT_PORT = 7878;
+    static final String JOB_SUFFIX = ".job";
+    static final String DEFAULT_TOKEN_FILE = ".shelagh_fish_service_token";
+
+    //Job parameters only the service sets, the worker command is run as a process
+    private static final List<String> SERVICE_ONLY = Arrays.asList("segmentation", "cellposeWorkerCommand");
+
+    //Finished jobs kept for STATUS
+    private static final int HISTORY = 1000;
+
+    @Parameter
+    private Context context;
+
+    @Parameter(label = "Port (0 for none): ", min = "0",
+            description = "Jobs are taken on this port of localhost only, one RUN line each")
+    public int port = DEFAULT_PORT;
+
+    @Parameter(label = "Watched folder: ", style = "directory", required = false,
+            description = "Jobs are also taken from *.job files dropped in this folder")
+    public File watchFolder;
+
+    @Parameter(label = "Workers: ", min = "1")
+    public int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / Shelagh_FISH.THREADS_PER_PART);
+
+    @Parameter(label = "Queued jobs: ", min = "1",
+            description = "Jobs waiting beyond this many are turned away until a worker is free")
+    public int queueSize = 64;
+
+    @Parameter(label = "Token file: ", style = "save", required = false,
+            description = "Clients on the port send the token written here, only you can read it")
+    public File tokenFile = new File(System.getProperty("user.home"), DEFAULT_TOKEN_FILE);
+
+    @Parameter(label = "Segmentation: ", choices = {Shelagh_FISH.CELLPOSE_PLUGIN, Shelagh_FISH.CELLPOSE_WORKER,
+            Shelagh_FISH.WATERSHED})
+    public String segmentation = Shelagh_FISH.CELLPOSE_PLUGIN;
+
+    @Parameter(label = "Cellpose worker command: ", required = false,
+            description = "Command that starts the worker, set here only and never by a job")
+    public String cellposeWorkerCommand = CellposeWorker.DEFAULT_COMMAND;
+
+    private ThreadPoolExecutor pool;
+    private ExecutorService events;
+    private ServerSocket server;
+    private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private byte[] token;
+
+    //Job files that could neither be read nor renamed, left alone rather than logged on every scan
+    private final Set<Path> unreadable = new HashSet<>();
+
+    /**
+     * The status of one job and where its progress goes. The plugin itself is only held by the worker running it, so
+     * the finished jobs kept for STATUS do not keep their images and results.
+     */
+    private static final class Job {
+        private final int id;
+        private final String file;
+        private final Consumer<String> reply;
+        private volatile String state = "queued";
+        private volatile String stage = "";
+
+        private Job(int id, String file, Consumer<String> reply) {
+            this.id = id;
+            this.file = file;
+            this.reply = reply;
+        }
+    }
+
+    @Override
+    public void run() {
+        pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)));
+        //Replies go out on their own thread so a slow client never holds up a pipeline
+        events = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Shelagh_FISH service replies");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (port > 0) {
+                token = writeToken(tokenFile);
+                server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+                startThread("Shelagh_FISH service port", this::accept);
+            }
+            if (watchFolder != null) {
+                startThread("Shelagh_FISH service folder", this::watch);
+            }
+        } catch (IOException e) {
+            IJ.log("Could not start the service: " + e.getMessage());
+            pool.shutdown();
+            events.shutdown();
+            return;
+        }
+        IJ.log("Shelagh FISH service" + (port > 0 ? " on localhost:" + port : "")
+                + (watchFolder != null ? " watching " + watchFolder : "") + ", " + workers + " workers");
+
+        //Served until a client sends SHUTDOWN
+        try {
+            shutdown.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (server != null) {
+                server.close();
+                Files.deleteIfExists(tokenFile.toPath());
+            }
+        } catch (IOException e) {
+            //Closing anyway
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        OutputWriter.shared().flush();
+        events.shutdown();
+        IJ.log("Shelagh FISH service stopped");
+    }
+
+    /**
+     * Queues a job, returns it or throws IllegalArgumentException with the reason it was turned away.
+     */
+    private Job submit(Properties parameters, Consumer<String> reply) {
+        Shelagh_FISH<?> plugin = new Shelagh_FISH<>();
+        context.inject(plugin);
+        configure(plugin, parameters);
+        Job job = new Job(nextId.getAndIncrement(), plugin.file.getPath(), reply);
+        jobs.put(job.id, job);
+        try {
+            pool.execute(() -> runJob(job, plugin));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw new IllegalArgumentException(pool.isShutdown() ? "shutting down" : "queue full");
+        }
+        return job;
+    }
+
+    //The job's parameters by name, anything not given keeps the plugin's default
+    private void configure(Shelagh_FISH<?> plugin, Properties parameters) {
+        for (String name : SERVICE_ONLY) {
+            if (parameters.getProperty(name) != null) {
+                throw new IllegalArgumentException(name + " is set by the service, not by a job");
+            }
+        }
+        String file = parameters.getProperty("file");
+        String tolerance = parameters.getProperty("tolerance");
+        if (file == null || tolerance == null) {
+            throw new IllegalArgumentException("a job needs file and tolerance");
+        }
+        plugin.file = new File(file);
+        if (!plugin.file.isFile()) {
+            throw new IllegalArgumentException("no file " + file);
+        }
+        try {
+            plugin.tolerance = Double.parseDouble(tolerance);
+            plugin.toleranceSweep = parameters.getProperty("toleranceSweep", plugin.toleranceSweep);
+            plugin.spotDetection = parameters.getProperty("spotDetection", plugin.spotDetection);
+            plugin.spotSigma = Double.parseDouble(parameters.getProperty("spotSigma", "" + plugin.spotSigma));
+            plugin.distanceMode = parameters.getProperty("distanceMode", plugin.distanceMode);
+            plugin.segmentation = segmentation;
+            if (cellposeWorkerCommand != null && !cellposeWorkerCommand.trim().isEmpty()) {
+                plugin.cellposeWorkerCommand = cellposeWorkerCommand;
+            }
+            plugin.useSegmentationCache = Boolean.parseBoolean(parameters.getProperty("useSegmentationCache",
+                    "" + plugin.useSegmentationCache));
+            plugin.segmentationCacheMB = Integer.parseInt(parameters.getProperty("segmentationCacheMB",
+                    "" + plugin.segmentationCacheMB));
+            plugin.tileSize = Integer.parseInt(parameters.getProperty("tileSize", "" + plugin.tileSize));
+            plugin.outputFormat = parameters.getProperty("outputFormat", plugin.outputFormat);
+            plugin.csvResults = Boolean.parseBoolean(parameters.getProperty("csvResults", "" + plugin.csvResults));
+            plugin.resume = Boolean.parseBoolean(parameters.getProperty("resume", "" + plugin.resume));
+            //Share the cores between the workers
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+            plugin.threads = Integer.parseInt(parameters.getProperty("threads", "" + threads));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number " + e.getMessage());
+        }
+        //The worker goes on to the next job while the images are written
+        plugin.waitForOutput = false;
+    }
+
+    private void runJob(Job job, Shelagh_FISH<?> plugin) {
+        job.state = "running";
+        reply(job, "RUNNING " + job.id);
+        long start = System.nanoTime();
+        plugin.progress = stage -> {
+            job.stage = stage;
+            reply(job, "PROGRESS " + job.id + " " + stage);
+        };
+        //Anything thrown, an Error too, fails the job rather than leaving it running
+        try {
+            plugin.run();
+        } catch (Throwable e) {
+            finish(job, false, "FAILED " + job.id + " " + e);
+            return;
+        }
+
+        //Done once its images are on disk, only what is needed for that is kept rather than the whole plugin
+        String failure = plugin.getFailure();
+        RunMetrics metrics = plugin.getMetrics();
+        CompletableFuture<Void> written = CompletableFuture.allOf(
+                plugin.imageWrites.toArray(new CompletableFuture<?>[0]));
+        written.whenComplete((v, e) -> {
+            if (failure != null || e != null) {
+                finish(job, false, "FAILED " + job.id + " " + (failure != null ? failure : e));
+                return;
+            }
+            String json = metrics == null ? "{}" : metrics.toJson().replaceAll("\\s*\\n\\s*", " ").trim();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            finish(job, true, "DONE " + job.id + String.format(Locale.ROOT, " %.3f ", seconds) + json);
+        });
+    }
+
+    private void finish(Job job, boolean done, String line) {
+        job.state = done ? "done" : "failed";
+        job.stage = "";
+        reply(job, line);
+        //Forget the oldest finished jobs
+        for (Job old : jobs.values()) {
+            if (jobs.size() <= HISTORY) {
+                break;
+            }
+            if (old.state.equals("done") || old.state.equals("failed")) {
+                jobs.remove(old.id);
+            }
+        }
+    }
+
+    private void reply(Job job, String line) {
+        events.execute(() -> job.reply.accept(line));
+    }
+
+    private void accept() {
+        while (shutdown.getCount() > 0) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                //Closed on shutdown
+                return;
+            }
+            startThread("Shelagh_FISH service client", () -> serve(socket));
+        }
+    }
+
+    //One client, its job progress goes back on the same connection for as long as it stays open
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                     StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(),
+                     StandardCharsets.UTF_8), true)) {
+            Consumer<String> reply = line -> {
+                synchronized (out) {
+                    out.println(line);
+                }
+            };
+            //Nothing is taken before the token, a browser's request line or a wrong token just closes the connection
+            if (!isAuthorised(in.readLine())) {
+                reply.accept("DENIED");
+                return;
+            }
+            reply.accept("OK");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+", 2);
+                String command = words[0].toUpperCase(Locale.ROOT);
+                if (command.equals("RUN")) {
+                    Properties parameters = new Properties();
+                    for (String pair : words.length > 1 ? line.trim().substring(3).trim().split("\t") : new String[0]) {
+                        int equals = pair.indexOf('=');
+                        if (equals > 0) {
+                            parameters.setProperty(pair.substring(0, equals).trim(), pair.substring(equals + 1));
+                        }
+                    }
+                    try {
+                        reply.accept("ACCEPTED " + submit(parameters, reply).id);
+                    } catch (IllegalArgumentException e) {
+                        reply.accept("REJECTED " + e.getMessage());
+                    }
+                } else if (command.equals("STATUS")) {
+                    for (Job job : new ArrayList<>(jobs.values())) {
+                        reply.accept("JOB " + job.id + " " + job.state + " " + job.stage.replace(' ', '_') + " "
+                                + job.file);
+                    }
+                    reply.accept("END");
+                } else if (command.equals("SHUTDOWN")) {
+                    reply.accept("BYE");
+                    shutdown.countDown();
+                    return;
+                } else if (!command.isEmpty()) {
+                    reply.accept("ERROR unknown command");
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //The client went away, its jobs carry on
+        }
+    }
+
+    //A new random token, written to a file only the user running the service can read
+    private static byte[] writeToken(File file) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            //Not a POSIX file system, the file is left to the user's home folder permissions
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Token file " + file + " was created by someone else");
+        }
+        Files.write(path, hex.toString().getBytes(StandardCharsets.UTF_8));
+        return hex.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    //True for AUTH followed by this service's token, compared in constant time
+    private boolean isAuthorised(String line) {
+        if (line == null) {
+            return false;
+        }
+        String[] words = line.trim().split("\\s+");
+        return words.length == 2 && words[0].equals("AUTH")
+                && MessageDigest.isEqual(token, words[1].getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void watch() {
+        Path folder = watchFolder.toPath();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+            while (shutdown.getCount() > 0) {
+                //A full scan each time also picks up jobs that were there first or were turned away
+                takeJobs(folder);
+                WatchKey key = watcher.poll(2, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (IOException e) {
+            IJ.log("Stopped watching " + folder + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //A job file that goes wrong is set aside on its own, the others and the watching carry on
+    private void takeJobs(Path folder) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(folder, "*" + JOB_SUFFIX)) {
+            found.forEach(files::add);
+        } catch (IOException | RuntimeException e) {
+            //Tried again on the next scan
+            IJ.log("Could not list " + folder + ": " + e);
+            return;
+        }
+        files.sort(null);
+        for (Path file : files) {
+            if (pool.getQueue().remainingCapacity() == 0) {
+                //Left for the next scan
+                return;
+            }
+            if (unreadable.contains(file)) {
+                continue;
+            }
+            try {
+                takeJob(folder, file);
+            } catch (IOException | RuntimeException e) {
+                setAside(folder, file, e);
+            }
+        }
+    }
+
+    //Renames a job file that could not be taken to .failed with the reason in its .status file
+    private void setAside(Path folder, Path file, Exception e) {
+        String name = file.getFileName().toString();
+        String base = name.substring(0, name.length() - JOB_SUFFIX.length());
+        IJ.log("Could not take " + name + ": " + e);
+        try {
+            Files.write(folder.resolve(base + ".status"), ("REJECTED " + e + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8));
+            //Still the job file if it could not be read, .running if it went wrong after it was taken
+            Path taken = Files.exists(file) ? file : folder.resolve(base + ".running");
+            if (Files.exists(taken)) {
+                Files.move(taken, folder.resolve(base + ".failed"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            unreadable.add(file);
+        }
+    }
+
+    //Reads one job file, renames it to .running and queues it
+    private void takeJob(Path folder, Path file) throws IOException {
+        String name = file.getFileName().toString();
+        String base = name.substring(0, name.length() - JOB_SUFFIX.length());
+        Path running = folder.resolve(base + ".running");
+        Path status = folder.resolve(base + ".status");
+        Properties parameters = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            parameters.load(in);
+        }
+        Files.move(file, running, StandardCopyOption.ATOMIC_MOVE);
+        Consumer<String> reply = line -> {
+            try {
+                Files.write(status, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                if (line.startsWith("DONE") || line.startsWith("FAILED") || line.startsWith("REJECTED")) {
+                    String end = line.startsWith("DONE") ? ".done" : ".failed";
+                    Files.move(running, folder.resolve(base + end), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                IJ.log("Could not report on " + name + ": " + e.getMessage());
+            }
+        };
+        try {
+            submit(parameters, reply);
+        } catch (IllegalArgumentException e) {
+            if (pool.getQueue().remainingCapacity() == 0 && !pool.isShutdown()) {
+                //Filled from the port meanwhile, tried again on the next scan
+                Files.move(running, file, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+            reply.accept("REJECTED " + e.getMessage());
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts the service without a user interface: Shelagh_FISH_Service [port] [watched folder] [workers]
+     * [segmentation] [Cellpose worker command]
+     *
+     * @param args the port (default 7878, 0 for none), a folder to watch for job files, the number of workers, the
+     *             segmentation and the command that starts the Cellpose worker
+     * @throws Exception
+     */
+    public static void main(final String... args) throws Exception {
+        final ImageJ ij = new ImageJ();
+        List<Object> inputs = new ArrayList<>();
+        inputs.add("port");
+        inputs.add(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+        if (args.length > 1) {
+            inputs.add("watchFolder");
+            inputs.add(new File(args[1]));
+        }
+        if (args.length > 2) {
+            inputs.add("workers");
+            inputs.add(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            inputs.add("segmentation");
+            inputs.add(args[3]);
+        }
+        if (args.length > 4) {
+            inputs.add("cellposeWorkerCommand");
+            inputs.add(args[4]);
+        }
+        ij.command().run(Shelagh_FISH_Service.class, false, inputs.toArray()).get();
+        ij.context().dispose();
+        System.exit(0);
+    }
+}
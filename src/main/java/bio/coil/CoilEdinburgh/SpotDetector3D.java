@@ -0,0 +1,502 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * FISH spots found in 3D on the stack itself rather than on its max projection.
+ * <p>
+ * The stack is filtered with a separable Difference of Gaussians (spot sigma minus three times the spot sigma, Z
+ * sigmas scaled by the voxel aspect ratio), scaled so an ideal spot keeps its peak height above the local
+ * background. Candidates are the strict 26-neighbour maxima of the filtered stack. For each candidate a priority
+ * flood finds how far it has to drop before reaching a higher voxel, its prominence, and a spot is kept when its
+ * prominence is at least the tolerance. Any other tolerance is just a different filter on the same candidates.
+ * </p>
+ * <p>
+ * This is Find Maxima's tolerance in 3D: as MaximumFinder does, the flood goes on until it reaches a higher voxel or
+ * has dropped by the tolerance, however far that is. The drop is measured on the filtered stack, whose background is
+ * 0 and whose noise is smoothed, rather than on the raw projection, so the same tolerance keeps the same spots above
+ * the background without the noise maxima on it.
+ * </p>
+ * <p>
+ * The XY plane is cut into tiles that are filtered and searched in parallel. Each tile is padded with a halo wide
+ * enough for the filter plus {@link #FLOOD_HALO} pixels, and the flood can go anywhere in the padded tile. Only a
+ * candidate that would have to go further than that to find a higher voxel is treated as isolated, with the drop to
+ * the lowest voxel it reached. A padded tile holds several float copies of its voxels, so each thread reuses one set
+ * of buffers for all its tiles, and the threads of every run in the JVM share a budget of a quarter of the heap for
+ * them.
+ * </p>
+ */
+final class SpotDetector3D {
+
+    //How far past its tile, in XY pixels, the flood from a candidate can look for a higher voxel
+    static final int FLOOD_HALO = 32;
+
+    private static final int TILE = 256;
+
+    //Raw, filtered, wide and scratch floats plus the flood's int per voxel of a tile
+    private static final int BYTES_PER_VOXEL = 5 * 4;
+
+    //Tile buffers of every run in the JVM, in MB
+    private static final int BUDGET_MB = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 4 / (1 << 20));
+    private static final Semaphore BUDGET = new Semaphore(BUDGET_MB);
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final double[] fish;
+    private final double[] dapi;
+    private final double[] prominence;
+
+    private SpotDetector3D(List<double[]> spots) {
+        int n = spots.size();
+        x = new double[n];
+        y = new double[n];
+        z = new double[n];
+        fish = new double[n];
+        dapi = new double[n];
+        prominence = new double[n];
+        for (int i = 0; i < n; i++) {
+            double[] spot = spots.get(i);
+            x[i] = spot[0];
+            y[i] = spot[1];
+            z[i] = spot[2];
+            fish[i] = spot[3];
+            dapi[i] = spot[4];
+            prominence[i] = spot[5];
+        }
+    }
+
+    /**
+     * Finds every candidate spot that can pass a tolerance between minDrop and maxDrop, and its prominence.
+     *
+     * @param fishStack the raw FISH stack
+     * @param dapiStack the raw DAPI stack, only read for the intensity at each spot
+     * @param spotSigma Gaussian sigma of a spot in XY pixels
+     * @param zScale    pixel width divided by pixel depth
+     * @param minDrop   candidates that cannot reach this prominence are skipped, e.g. the smallest tolerance
+     * @param maxDrop   prominences are only worked out exactly up to this, e.g. the largest tolerance
+     */
+    static SpotDetector3D detect(ImageStack fishStack, ImageStack dapiStack, double spotSigma, double zScale,
+                                 double minDrop, double maxDrop) {
+        int width = fishStack.getWidth();
+        int height = fishStack.getHeight();
+        double sigma1 = spotSigma;
+        double sigma2 = 3 * spotSigma;
+        int halo = (int) Math.ceil(3 * sigma2) + FLOOD_HALO;
+        double gain = 1 / peakResponse(spotSigma, spotSigma * zScale, sigma1, sigma2, zScale);
+
+        int tilesX = (width + TILE - 1) / TILE;
+        int tilesY = (height + TILE - 1) / TILE;
+        int tiles = tilesX * tilesY;
+        int capacity = Math.min(width, TILE + 2 * halo) * Math.min(height, TILE + 2 * halo) * fishStack.getSize();
+        int megabytes = (int) Math.min(BUDGET_MB, ((long) capacity * BYTES_PER_VOXEL >> 20) + 1);
+
+        //Each worker takes tiles until there are none left, with one set of buffers
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        int workers = Math.max(1, Math.min(tiles, Math.min(pool.getParallelism(), BUDGET_MB / megabytes)));
+        AtomicInteger next = new AtomicInteger();
+        List<double[]> spots = IntStream.range(0, workers).parallel()
+                .mapToObj(k -> {
+                    List<double[]> found = new ArrayList<>();
+                    BUDGET.acquireUninterruptibly(megabytes);
+                    try {
+                        Workspace workspace = new Workspace(capacity);
+                        for (int t = next.getAndIncrement(); t < tiles; t = next.getAndIncrement()) {
+                            found.addAll(new Tile(fishStack, dapiStack, (t % tilesX) * TILE, (t / tilesX) * TILE,
+                                    halo).find(workspace, sigma1, sigma2, zScale, gain, minDrop, maxDrop));
+                        }
+                    } finally {
+                        BUDGET.release(megabytes);
+                    }
+                    return found;
+                })
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+
+        //Brightest first, as Find Maxima lists them, ties in scan order so the order never depends on the threads
+        spots.sort(Comparator.<double[]>comparingDouble(s -> -s[6])
+                .thenComparingDouble(s -> s[2]).thenComparingDouble(s -> s[1]).thenComparingDouble(s -> s[0]));
+        return new SpotDetector3D(spots);
+    }
+
+    /**
+     * Spots with a prominence of at least the tolerance, as {x, y, z, FISH intensity, DAPI intensity} like
+     * findZPositions.
+     */
+    double[][] select(double tolerance) {
+        List<double[]> selected = new ArrayList<>();
+        for (int i = 0; i < x.length; i++) {
+            if (prominence[i] >= tolerance) {
+                selected.add(new double[]{x[i], y[i], z[i], fish[i], dapi[i]});
+            }
+        }
+        return selected.toArray(new double[0][]);
+    }
+
+    /**
+     * Every candidate as {x, y, z, FISH intensity, DAPI intensity, prominence}, to be saved and read back with
+     * {@link #fromTable}.
+     */
+    double[][] toTable() {
+        double[][] table = new double[x.length][];
+        for (int i = 0; i < x.length; i++) {
+            table[i] = new double[]{x[i], y[i], z[i], fish[i], dapi[i], prominence[i]};
+        }
+        return table;
+    }
+
+    static SpotDetector3D fromTable(double[][] table) {
+        return new SpotDetector3D(Arrays.asList(table));
+    }
+
+    int getCandidateCount() {
+        return x.length;
+    }
+
+    //Peak of the DoG for a unit Gaussian spot, product over the three axes of sigma/sqrt(sigma^2 + filter^2)
+    private static double peakResponse(double spotXY, double spotZ, double sigma1, double sigma2, double zScale) {
+        double z1 = sigma1 * zScale;
+        double z2 = sigma2 * zScale;
+        double narrow = square(spotXY / Math.hypot(spotXY, sigma1)) * (spotZ / Math.hypot(spotZ, z1));
+        double wide = square(spotXY / Math.hypot(spotXY, sigma2)) * (spotZ / Math.hypot(spotZ, z2));
+        return narrow - wide;
+    }
+
+    private static double square(double v) {
+        return v * v;
+    }
+
+    /**
+     * Buffers for one padded tile, reused for every tile a worker takes.
+     */
+    private static final class Workspace {
+        private final float[] raw;
+        private final float[] dog;
+        private final float[] wide;
+        private final float[] scratch;
+        private final Flood flood;
+
+        Workspace(int capacity) {
+            raw = new float[capacity];
+            dog = new float[capacity];
+            wide = new float[capacity];
+            scratch = new float[capacity];
+            flood = new Flood(new int[capacity]);
+        }
+    }
+
+    /**
+     * One XY tile with its halo, all slices.
+     */
+    private static final class Tile {
+        private final ImageStack fishStack;
+        private final ImageStack dapiStack;
+        private final int x0;
+        private final int y0;
+        private final int x1;
+        private final int y1;
+        private final int px0;
+        private final int py0;
+        private final int w;
+        private final int h;
+        private final int d;
+
+        Tile(ImageStack fishStack, ImageStack dapiStack, int x0, int y0, int halo) {
+            this.fishStack = fishStack;
+            this.dapiStack = dapiStack;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = Math.min(fishStack.getWidth(), x0 + TILE);
+            this.y1 = Math.min(fishStack.getHeight(), y0 + TILE);
+            px0 = Math.max(0, x0 - halo);
+            py0 = Math.max(0, y0 - halo);
+            w = Math.min(fishStack.getWidth(), x1 + halo) - px0;
+            h = Math.min(fishStack.getHeight(), y1 + halo) - py0;
+            d = fishStack.getSize();
+        }
+
+        List<double[]> find(Workspace workspace, double sigma1, double sigma2, double zScale, double gain,
+                            double minDrop, double maxDrop) {
+            int n = w * h * d;
+            float[] raw = workspace.raw;
+            for (int z = 0; z < d; z++) {
+                readSlice(z, raw);
+            }
+            float[] dog = gaussian(raw, workspace.dog, workspace.scratch, sigma1, sigma1 * zScale);
+            float[] wide = gaussian(raw, workspace.wide, workspace.scratch, sigma2, sigma2 * zScale);
+            for (int i = 0; i < n; i++) {
+                dog[i] = (float) ((dog[i] - wide[i]) * gain);
+            }
+
+            //Nothing the flood can reach is lower than this, so a candidate within minDrop of it can never pass
+            float floor = Float.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                floor = Math.min(floor, dog[i]);
+            }
+
+            Flood flood = workspace.flood;
+            flood.reset(dog, w, h, d);
+            List<double[]> spots = new ArrayList<>();
+            int width = fishStack.getWidth();
+            int height = fishStack.getHeight();
+            for (int z = 0; z < d; z++) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        //Maxima on the image edge are dropped, as with Find Maxima's exclude edges
+                        if (x == 0 || y == 0 || x == width - 1 || y == height - 1) {
+                            continue;
+                        }
+                        int i = (z * h + (y - py0)) * w + (x - px0);
+                        if (dog[i] <= 0 || dog[i] - floor < minDrop || !isMaximum(dog, i, x - px0, y - py0, z)) {
+                            continue;
+                        }
+                        double drop = flood.prominence(i, maxDrop);
+                        spots.add(new double[]{x, y, z, raw[i], dapiStack.getVoxel(x, y, z), drop, dog[i]});
+                    }
+                }
+            }
+            return spots;
+        }
+
+        //The tile's rows of slice z, a row at a time from the slice's pixel array
+        private void readSlice(int z, float[] out) {
+            Object pixels = fishStack.getPixels(z + 1);
+            int width = fishStack.getWidth();
+            for (int y = 0; y < h; y++) {
+                int from = (py0 + y) * width + px0;
+                int to = (z * h + y) * w;
+                if (pixels instanceof short[]) {
+                    short[] row = (short[]) pixels;
+                    for (int x = 0; x < w; x++) {
+                        out[to + x] = row[from + x] & 0xffff;
+                    }
+                } else if (pixels instanceof byte[]) {
+                    byte[] row = (byte[]) pixels;
+                    for (int x = 0; x < w; x++) {
+                        out[to + x] = row[from + x] & 0xff;
+                    }
+                } else if (pixels instanceof float[]) {
+                    System.arraycopy(pixels, from, out, to, w);
+                } else {
+                    for (int x = 0; x < w; x++) {
+                        out[to + x] = (float) fishStack.getVoxel(px0 + x, py0 + y, z);
+                    }
+                }
+            }
+        }
+
+        //Higher than every earlier neighbour and at least as high as every later one, so plateaus give one maximum
+        private boolean isMaximum(float[] values, int i, int x, int y, int z) {
+            float v = values[i];
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        int nz = z + dz;
+                        if ((dx | dy | dz) == 0 || nx < 0 || ny < 0 || nz < 0 || nx >= w || ny >= h || nz >= d) {
+                            continue;
+                        }
+                        int j = (nz * h + ny) * w + nx;
+                        if (values[j] > v || (values[j] == v && j < i)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        //Separable Gaussian into out, edges repeat the border value. Y and Z combine whole rows and planes so every
+        //pass walks memory in order
+        private float[] gaussian(float[] input, float[] out, float[] scratch, double sigmaXY, double sigmaZ) {
+            float[] kernel = kernel(sigmaXY);
+            int radius = kernel.length - 1;
+            float[] line = new float[w + 2 * radius];
+            float[] blurX = scratch;
+            for (int row = 0; row < h * d; row++) {
+                int offset = row * w;
+                Arrays.fill(line, 0, radius, input[offset]);
+                System.arraycopy(input, offset, line, radius, w);
+                Arrays.fill(line, radius + w, line.length, input[offset + w - 1]);
+                for (int x = 0; x < w; x++) {
+                    int c = x + radius;
+                    float sum = kernel[0] * line[c];
+                    for (int k = 1; k <= radius; k++) {
+                        sum += kernel[k] * (line[c - k] + line[c + k]);
+                    }
+                    blurX[offset + x] = sum;
+                }
+            }
+            for (int z = 0; z < d; z++) {
+                combine(blurX, out, z * h * w, w, h, kernel);
+            }
+            float[] kernelZ = kernel(sigmaZ);
+            if (kernelZ.length > 1) {
+                combine(out, scratch, 0, w * h, d, kernelZ);
+                System.arraycopy(scratch, 0, out, 0, w * h * d);
+            }
+            return out;
+        }
+
+        //Blurs the n blocks of the given length starting at offset, each block weighted as a whole
+        private static void combine(float[] in, float[] out, int offset, int length, int n, float[] kernel) {
+            int radius = kernel.length - 1;
+            for (int i = 0; i < n; i++) {
+                int o = offset + i * length;
+                for (int j = 0; j < length; j++) {
+                    out[o + j] = kernel[0] * in[o + j];
+                }
+                for (int k = 1; k <= radius; k++) {
+                    int a = offset + Math.max(0, i - k) * length;
+                    int b = offset + Math.min(n - 1, i + k) * length;
+                    float weight = kernel[k];
+                    for (int j = 0; j < length; j++) {
+                        out[o + j] += weight * (in[a + j] + in[b + j]);
+                    }
+                }
+            }
+        }
+
+        //One half of a normalised symmetric kernel, the centre first
+        private static float[] kernel(double sigma) {
+            if (sigma < 0.3) {
+                return new float[]{1};
+            }
+            int radius = (int) Math.ceil(3 * sigma);
+            float[] kernel = new float[radius + 1];
+            double sum = 0;
+            for (int i = 0; i <= radius; i++) {
+                kernel[i] = (float) Math.exp(-i * i / (2 * sigma * sigma));
+                sum += i == 0 ? kernel[i] : 2 * kernel[i];
+            }
+            for (int i = 0; i <= radius; i++) {
+                kernel[i] /= sum;
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * Priority flood from a maximum, highest neighbours first, until it reaches a voxel above the start.
+     */
+    private static final class Flood {
+        private final int[] visited;
+        private float[] values;
+        private int w;
+        private int h;
+        private int d;
+        private int stamp;
+
+        //Binary max-heap of voxel indices keyed on value
+        private int[] heap = new int[1024];
+        private int size;
+
+        Flood(int[] visited) {
+            this.visited = visited;
+        }
+
+        //Floods another tile, the stamps carry on so visited never needs clearing
+        void reset(float[] values, int w, int h, int d) {
+            this.values = values;
+            this.w = w;
+            this.h = h;
+            this.d = d;
+        }
+
+        /**
+         * Drop from the maximum at i to the lowest level on the best path to a higher voxel, capped at maxDrop.
+         */
+        double prominence(int i, double maxDrop) {
+            stamp++;
+            size = 0;
+            float start = values[i];
+            double level = start;
+            push(i);
+            visited[i] = stamp;
+            while (size > 0) {
+                int p = pop();
+                float v = values[p];
+                if (v > start || (v == start && p < i)) {
+                    return start - level;
+                }
+                level = Math.min(level, v);
+                if (start - level >= maxDrop) {
+                    return start - level;
+                }
+                int x = p % w;
+                int y = p / w % h;
+                int z = p / (w * h);
+                for (int n = 0; n < 6; n++) {
+                    int nx = x + (n == 0 ? -1 : n == 1 ? 1 : 0);
+                    int ny = y + (n == 2 ? -1 : n == 3 ? 1 : 0);
+                    int nz = z + (n == 4 ? -1 : n == 5 ? 1 : 0);
+                    if (nx < 0 || ny < 0 || nz < 0 || nx >= w || ny >= h || nz >= d) {
+                        continue;
+                    }
+                    int j = (nz * h + ny) * w + nx;
+                    if (visited[j] != stamp) {
+                        visited[j] = stamp;
+                        push(j);
+                    }
+                }
+            }
+            //Nothing higher in the padded tile, the candidate stands out from everything the flood reached
+            return start - level;
+        }
+
+        private void push(int index) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (values[heap[parent]] >= values[index]) {
+                    break;
+                }
+                heap[k] = heap[parent];
+                k = parent;
+            }
+            heap[k] = index;
+        }
+
+        private int pop() {
+            int top = heap[0];
+            int last = heap[--size];
+            int k = 0;
+            while (2 * k + 1 < size) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && values[heap[child + 1]] > values[heap[child]]) {
+                    child++;
+                }
+                if (values[last] >= values[heap[child]]) {
+                    break;
+                }
+                heap[k] = heap[child];
+                k = child;
+            }
+            heap[k] = last;
+            return top;
+        }
+    }
+}
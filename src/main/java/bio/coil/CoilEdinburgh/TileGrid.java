@@ -0,0 +1,67 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import java.awt.Rectangle;
+
+/**
+ * Splits a large field into square tiles for the tiled mode.
+ * <p>
+ * The cores of the tiles cover the field exactly once. Each tile is analysed on its core plus a halo on every side,
+ * clipped to the field. With a halo of at least one nucleus diameter, any nucleus whose centre is in the core lies
+ * wholly inside the padded tile, so the tile that owns the centre sees all of it.
+ * </p>
+ */
+final class TileGrid {
+
+    private final Rectangle[] cores;
+    private final Rectangle[] padded;
+
+    private TileGrid(Rectangle[] cores, Rectangle[] padded) {
+        this.cores = cores;
+        this.padded = padded;
+    }
+
+    /**
+     * Tiles of tileSize pixels, row by row, the last row and column take what is left.
+     */
+    static TileGrid of(int width, int height, int tileSize, int halo) {
+        int columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        Rectangle field = new Rectangle(0, 0, width, height);
+        Rectangle[] cores = new Rectangle[columns * rows];
+        Rectangle[] padded = new Rectangle[cores.length];
+        for (int i = 0; i < cores.length; i++) {
+            int x = (i % columns) * tileSize;
+            int y = (i / columns) * tileSize;
+            cores[i] = new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+            padded[i] = new Rectangle(x - halo, y - halo, cores[i].width + 2 * halo, cores[i].height + 2 * halo)
+                    .intersection(field);
+        }
+        return new TileGrid(cores, padded);
+    }
+
+    int size() {
+        return cores.length;
+    }
+
+    /**
+     * The part of the field tile i is responsible for.
+     */
+    Rectangle getCore(int i) {
+        return cores[i];
+    }
+
+    /**
+     * The region tile i is read and analysed on, its core plus the halo.
+     */
+    Rectangle getPadded(int i) {
+        return padded[i];
+    }
+}
@@ -0,0 +1,66 @@
+# Long-lived Cellpose worker for the Shelagh FISH plugin, see CellposeWorker.java for the protocol.
+#
+# Reads the settings once, loads the model once and then segments batches of projections from stdin until stdin
+# closes, writing the label masks to stdout. Anything Cellpose prints goes to stderr so stdout only carries replies.
+
+import json
+import struct
+import sys
+
+import numpy as np
+
+replies = sys.stdout.buffer
+requests = sys.stdin.buffer
+sys.stdout = sys.stderr
+
+from cellpose import models
+
+
+def read_exactly(n):
+    data = bytearray()
+    while len(data) < n:
+        chunk = requests.read(n - len(data))
+        if not chunk:
+            return None
+        data.extend(chunk)
+    return bytes(data)
+
+
+def read_int():
+    data = read_exactly(4)
+    return None if data is None else struct.unpack(">i", data)[0]
+
+
+def main():
+    length = read_int()
+    if length is None:
+        return
+    settings = json.loads(read_exactly(length).decode("utf-8"))
+    model = models.Cellpose(gpu=settings.get("use_gpu", True), model_type=settings.get("model", "cyto2"))
+
+    while True:
+        count = read_int()
+        if count is None:
+            return
+        images = []
+        for _ in range(count):
+            width = read_int()
+            height = read_int()
+            pixels = np.frombuffer(read_exactly(width * height * 4), dtype=">f4")
+            images.append(pixels.reshape(height, width).astype(np.float32))
+
+        masks, _, _, _ = model.eval(images,
+                                    diameter=settings.get("diameter", 100),
+                                    channels=[0, 0],
+                                    flow_threshold=settings.get("flow_threshold", 0.4),
+                                    cellprob_threshold=settings.get("cellproba_threshold", 0.0))
+
+        for mask in masks:
+            height, width = mask.shape
+            replies.write(struct.pack(">ii", width, height))
+            replies.write(np.ascontiguousarray(mask, dtype=">i4").tobytes())
+        replies.flush()
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,55 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link CellposeWorker} against {@link StubSegmentationWorker}, which segments with {@link WatershedSegmenter},
+ * so a batch sent through the worker process must come back exactly as the segmenter gives it in this JVM.
+ */
+public class CellposeWorkerTest {
+
+    private static final double DIAMETER = 60;
+
+    @Test
+    public void testBatchMatchesInProcess() throws IOException {
+        ImagePlus first = projection(0);
+        ImagePlus second = projection(1);
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("diameter", DIAMETER);
+
+        List<LabelImage> labels;
+        try (CellposeWorker worker = new CellposeWorker(StubSegmentationWorker.command(), settings, 2)) {
+            labels = worker.segmentAll(Arrays.asList(first, second));
+        }
+        WatershedSegmenter segmenter = new WatershedSegmenter(DIAMETER, 2);
+        assertEquals(2, labels.size());
+        assertArrayEquals(segmenter.segment(first).getLabels(), labels.get(0).getLabels());
+        assertArrayEquals(segmenter.segment(second).getLabels(), labels.get(1).getLabels());
+    }
+
+    //DAPI max projection of a small synthetic stack, as float pixels like the worker sends
+    private static ImagePlus projection(long seed) {
+        SyntheticStack stack = new SyntheticStack(256, 10, 4, 0, 50, seed);
+        ImagePlus max = ZProjector.run(stack.getDapi(), "max");
+        return new ImagePlus("projection", max.getProcessor().convertToFloatProcessor());
+    }
+}
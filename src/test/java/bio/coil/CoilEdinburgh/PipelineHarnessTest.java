@@ -0,0 +1,187 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end check of the whole pipeline on {@link SyntheticStack}s, run by {@code mvn test} on a plain Linux box
+ * without Cellpose.
+ * <p>
+ * Segmentation is replaced by the ground truth labels. Each stack is written to a temporary folder and analysed with
+ * the 3D nearest edge distance. Every synthetic spot must then be found in the right voxel and cell, with a distance
+ * within one voxel diagonal of the true distance. A second run per size uses the line distance and checks it is never
+ * shorter than the nearest edge. The time of each analysis gives the images per minute for each size.
+ * </p>
+ * <p>
+ * By default one 512 x 512 stack is analysed so the test stays quick and prints nothing. Larger sizes and repeats
+ * give a scaling curve, printed as a table only when the sizes are given:
+ * {@code mvn test -Dtest=PipelineHarnessTest -Dharness.sizes=512,1024,2048 -Dharness.repeats=3}.
+ * </p>
+ */
+public class PipelineHarnessTest {
+
+    private static final int SLICES = 30;
+    private static final int SPOTS_PER_CELL = 4;
+    private static final double NOISE = 50;
+    private static final double TOLERANCE = 1000;
+
+    //The images per minute table is only printed when asked for sizes, not on every mvn test
+    private static final boolean REPORT = System.getProperty("harness.sizes") != null;
+
+    //Nuclei are about this many pixels apart whatever the image size
+    private static final int CELL_PITCH = 100;
+
+    //Largest error allowed, one voxel diagonal
+    private static final double DIAGONAL = Math.sqrt(2 * SyntheticStack.PIXEL_WIDTH * SyntheticStack.PIXEL_WIDTH
+            + SyntheticStack.PIXEL_DEPTH * SyntheticStack.PIXEL_DEPTH);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Hands back known labels in place of Cellpose.
+     */
+    static final class KnownLabels implements Segmenter {
+        private final LabelImage labels;
+
+        KnownLabels(LabelImage labels) {
+            this.labels = labels;
+        }
+
+        @Override
+        public Map<String, Object> getSettings() {
+            Map<String, Object> settings = new TreeMap<>();
+            settings.put("backend", "known labels");
+            return settings;
+        }
+
+        @Override
+        public LabelImage segment(ImagePlus projection) {
+            return labels;
+        }
+    }
+
+    @BeforeClass
+    public static void setHeadless() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test
+    public void testSpotsAndDistances() {
+        String[] sizes = System.getProperty("harness.sizes", "512").split(",");
+        int repeats = Integer.getInteger("harness.repeats", 1);
+        report("Size, Slices, Cells, Spots, Found, Max edge error (um), Line shorter than edge, "
+                + "Seconds/image, Images/minute");
+        for (String item : sizes) {
+            int size = Integer.parseInt(item.trim());
+            int cells = Math.max(1, (size / CELL_PITCH) * (size / CELL_PITCH));
+            double seconds = 0;
+            int spots = 0;
+            int found = 0;
+            double maxError = 0;
+            for (int repeat = 0; repeat < repeats; repeat++) {
+                SyntheticStack truth = new SyntheticStack(size, SLICES, cells, SPOTS_PER_CELL, NOISE, repeat);
+                Shelagh_FISH<?> plugin = newPlugin(truth, Shelagh_FISH.EDGE_DISTANCE);
+                long start = System.nanoTime();
+                analyse(plugin, truth);
+                seconds += (System.nanoTime() - start) / 1e9;
+
+                spots += truth.getSpots().length;
+                for (int i = 0; i < truth.getSpots().length; i++) {
+                    int j = findSpot(truth, i, plugin.spotPositions);
+                    if (j >= 0) {
+                        found++;
+                        double error = Math.abs(plugin.spotDistances[j][7] - truth.getEdgeDistances()[i]);
+                        maxError = Math.max(maxError, error);
+                    }
+                }
+            }
+            int shorter = checkLineDistance(size, cells);
+            report(String.format(Locale.ROOT, "%d, %d, %d, %d, %d, %.3f, %d, %.2f, %.1f", size, SLICES,
+                    cells, spots / repeats, found / repeats, maxError, shorter, seconds / repeats,
+                    60 * repeats / seconds));
+
+            assertEquals("Spots found at " + size, spots, found);
+            assertTrue("Edge error " + maxError + " at " + size, maxError <= DIAGONAL);
+            assertEquals("Line distances shorter than the nearest edge at " + size, 0, shorter);
+        }
+    }
+
+    //Runs the pipeline and waits for its images, which the temporary folder would otherwise delete under the writer
+    private static void analyse(Shelagh_FISH<?> plugin, SyntheticStack truth) {
+        plugin.analyse(truth.getImage());
+        OutputWriter.shared().flush();
+    }
+
+    private static void report(String line) {
+        if (REPORT) {
+            System.out.println(line);
+        }
+    }
+
+    private Shelagh_FISH<?> newPlugin(SyntheticStack truth, String distanceMode) {
+        File file;
+        try {
+            file = new File(folder.newFolder(), truth.getImage().getTitle() + ".tif");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        new FileSaver(truth.getImage()).saveAsTiff(file.getPath());
+        Shelagh_FISH<?> plugin = new Shelagh_FISH<>();
+        plugin.file = file;
+        plugin.tolerance = TOLERANCE;
+        plugin.spotDetection = Shelagh_FISH.SPOTS_3D;
+        plugin.distanceMode = distanceMode;
+        plugin.useSegmentationCache = false;
+        plugin.segmenter = new KnownLabels(truth.getLabels());
+        return plugin;
+    }
+
+    //Index of the detected spot in the same voxel and cell as synthetic spot i, or -1
+    private static int findSpot(SyntheticStack truth, int i, double[][] detected) {
+        double[] spot = truth.getSpots()[i];
+        for (int j = 0; j < detected.length; j++) {
+            if (detected[j][0] == spot[0] && detected[j][1] == spot[1] && detected[j][2] == spot[2]
+                    && detected[j][3] == truth.getSpotCells()[i] + 1) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    //Spots whose line distance is shorter than the nearest edge allows, a voxel diagonal is allowed for rounding
+    private int checkLineDistance(int size, int cells) {
+        SyntheticStack truth = new SyntheticStack(size, SLICES, cells, SPOTS_PER_CELL, NOISE, 0);
+        Shelagh_FISH<?> plugin = newPlugin(truth, Shelagh_FISH.LINE_DISTANCE);
+        analyse(plugin, truth);
+        int shorter = 0;
+        for (int i = 0; i < truth.getSpots().length; i++) {
+            int j = findSpot(truth, i, plugin.spotPositions);
+            if (j >= 0 && plugin.spotDistances[j][7] < truth.getEdgeDistances()[i] - DIAGONAL) {
+                shorter++;
+            }
+        }
+        return shorter;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for cellpose_worker.py that speaks the {@link CellposeWorker} protocol from a plain Java process.
+ * <p>
+ * Masks come from {@link WatershedSegmenter} using the diameter in the settings, so the worker plumbing (process
+ * start, batching, restarts, the cache) can be tested on machines without Python or Cellpose.
+ * </p>
+ */
+public final class StubSegmentationWorker {
+
+    private StubSegmentationWorker() {
+    }
+
+    /**
+     * Command line that runs the stub on this JVM's classpath, to give to {@link CellposeWorker}.
+     */
+    static String command() {
+        String java = new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath();
+        return "\"" + java + "\" -cp \"" + System.getProperty("java.class.path") + "\" "
+                + StubSegmentationWorker.class.getName();
+    }
+
+    public static void main(String... args) throws IOException {
+        //Keep stdout for replies, anything else printed goes to stderr
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        System.setOut(System.err);
+
+        byte[] json;
+        try {
+            json = new byte[in.readInt()];
+        } catch (EOFException e) {
+            return;
+        }
+        in.readFully(json);
+        Matcher diameter = Pattern.compile("\"diameter\":([0-9.]+)")
+                .matcher(new String(json, StandardCharsets.UTF_8));
+        WatershedSegmenter segmenter = new WatershedSegmenter(
+                diameter.find() ? Double.parseDouble(diameter.group(1)) : 100, 2);
+
+        while (true) {
+            int count;
+            try {
+                count = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            LabelImage[] labels = new LabelImage[count];
+            for (int n = 0; n < count; n++) {
+                int width = in.readInt();
+                int height = in.readInt();
+                byte[] bytes = new byte[width * height * 4];
+                in.readFully(bytes);
+                float[] pixels = new float[width * height];
+                ByteBuffer.wrap(bytes).asFloatBuffer().get(pixels);
+                labels[n] = segmenter.segment(new ImagePlus("stub", new FloatProcessor(width, height, pixels)));
+            }
+            for (LabelImage label : labels) {
+                ByteBuffer reply = ByteBuffer.allocate(label.getLabels().length * 4);
+                reply.asIntBuffer().put(label.getLabels());
+                out.writeInt(label.getWidth());
+                out.writeInt(label.getHeight());
+                out.write(reply.array());
+            }
+            out.flush();
+        }
+    }
+}
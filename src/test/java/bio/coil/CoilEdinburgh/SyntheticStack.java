@@ -0,0 +1,295 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package bio.coil.CoilEdinburgh;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic three channel Z-stack with known nuclei and FISH spots, laid out like the microscope files: channel 2 is
+ * FISH and channel 3 is DAPI.
+ * <p>
+ * Nuclei are ellipsoids on a regular grid, one per grid square, centred in Z and a little taller than the stack so
+ * every slice cuts them, as in real data. DAPI is bright inside the nuclei, FISH spots are Gaussian blobs in a
+ * single slice at random voxels inside them, at least 6 pixels apart, and every channel gets Gaussian noise. A spot
+ * that finds no such voxel in 1000 tries is left out, so a crowded nucleus can have fewer than asked for.
+ * Everything comes from one seeded Random, so the same arguments always give the same stack.
+ * </p>
+ * <p>
+ * The ground truth is the label image of the nuclei (their largest, central section), the spot voxels, and the
+ * calibrated distance from each spot to the nearest edge voxel of its nucleus. That distance uses the same rule as
+ * {@link EdgeDistanceMap}: a voxel of the nucleus with one of its 6 neighbours outside the nucleus or the stack.
+ * </p>
+ */
+final class SyntheticStack {
+
+    static final double PIXEL_WIDTH = 0.1;
+    static final double PIXEL_DEPTH = 0.3;
+
+    static final int BACKGROUND = 100;
+    static final int NUCLEUS = 2000;
+    static final int SPOT = 5000;
+    static final double SPOT_SIGMA = 1.5;
+
+    private static final int MIN_SPOT_SEPARATION = 6;
+    private static final int MAX_ATTEMPTS = 1000;
+
+    private final ImagePlus image;
+    private final ImageStack fish;
+    private final ImageStack dapi;
+    private final LabelImage labels;
+    private final double[][] spots;
+    private final int[] spotCells;
+    private final double[] edgeDistances;
+
+    /**
+     * @param size         width and height in pixels
+     * @param slices       number of Z slices
+     * @param cells        number of nuclei, rounded up to fill a square grid
+     * @param spotsPerCell FISH spots to place in each nucleus, at most
+     * @param noise        standard deviation of the Gaussian noise added to every channel
+     * @param seed         seed for every random choice
+     */
+    SyntheticStack(int size, int slices, int cells, int spotsPerCell, double noise, long seed) {
+        Random random = new Random(seed);
+        int grid = (int) Math.ceil(Math.sqrt(cells));
+        cells = grid * grid;
+        double pitch = (double) size / grid;
+
+        //Centre and semi-axes of each nucleus, in voxels
+        double[][] nuclei = new double[cells][6];
+        for (int i = 0; i < cells; i++) {
+            nuclei[i][0] = (i % grid + 0.5) * pitch;
+            nuclei[i][1] = (i / grid + 0.5) * pitch;
+            nuclei[i][2] = (slices - 1) / 2.0;
+            nuclei[i][3] = pitch * (0.3 + 0.1 * random.nextDouble());
+            nuclei[i][4] = pitch * (0.3 + 0.1 * random.nextDouble());
+            nuclei[i][5] = slices * 0.55;
+        }
+
+        //Label image from the central section, the largest one
+        int[] label = new int[size * size];
+        for (int i = 0; i < cells; i++) {
+            for (int[] p : section(nuclei[i], size, size, nuclei[i][2])) {
+                label[p[1] * size + p[0]] = i + 1;
+            }
+        }
+
+        //Spots at random voxels inside each nucleus, kept apart so each one is its own maximum
+        List<double[]> placed = new ArrayList<>();
+        List<Integer> placedCells = new ArrayList<>();
+        for (int cell = 0; cell < cells; cell++) {
+            double[] n = nuclei[cell];
+            int first = placed.size();
+            for (int k = 0; k < spotsPerCell; k++) {
+                for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                    double[] spot = {Math.round(n[0] + (2 * random.nextDouble() - 1) * n[3]),
+                            Math.round(n[1] + (2 * random.nextDouble() - 1) * n[4]),
+                            Math.round(n[2] + (2 * random.nextDouble() - 1) * n[5])};
+                    if (spot[2] >= 0 && spot[2] < slices && inside(n, spot[0], spot[1], spot[2])
+                            && isApart(spot, placed, first)) {
+                        placed.add(spot);
+                        placedCells.add(cell);
+                        break;
+                    }
+                }
+            }
+        }
+        spots = placed.toArray(new double[0][]);
+        spotCells = new int[spots.length];
+        for (int i = 0; i < spots.length; i++) {
+            spotCells[i] = placedCells.get(i);
+        }
+
+        //Pixels
+        fish = new ImageStack(size, size);
+        dapi = new ImageStack(size, size);
+        ImageStack channels = new ImageStack(size, size);
+        for (int z = 0; z < slices; z++) {
+            short[] other = new short[size * size];
+            short[] fishPixels = new short[size * size];
+            short[] dapiPixels = new short[size * size];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int cell = label[y * size + x] - 1;
+                    boolean nucleus = cell >= 0 && inside(nuclei[cell], x, y, z);
+                    other[y * size + x] = noisy(random, BACKGROUND, noise);
+                    fishPixels[y * size + x] = noisy(random, BACKGROUND, noise);
+                    dapiPixels[y * size + x] = noisy(random, nucleus ? NUCLEUS : BACKGROUND, noise);
+                }
+            }
+            fish.addSlice(new ShortProcessor(size, size, fishPixels, null));
+            dapi.addSlice(new ShortProcessor(size, size, dapiPixels, null));
+            channels.addSlice("C1 Z" + (z + 1), new ShortProcessor(size, size, other, null));
+            channels.addSlice("C2 Z" + (z + 1), fish.getProcessor(z + 1));
+            channels.addSlice("C3 Z" + (z + 1), dapi.getProcessor(z + 1));
+        }
+        for (double[] spot : spots) {
+            addSpot(fish, spot[0], spot[1], (int) spot[2]);
+        }
+
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = PIXEL_WIDTH;
+        calibration.pixelHeight = PIXEL_WIDTH;
+        calibration.pixelDepth = PIXEL_DEPTH;
+        calibration.setUnit("micron");
+        image = new ImagePlus("Synthetic_" + size + "_" + seed, channels);
+        image.setDimensions(3, slices, 1);
+        image.setCalibration(calibration);
+
+        labels = LabelImage.fromLabels(size, size, label);
+        edgeDistances = nearestEdgeDistances(nuclei, size, slices);
+    }
+
+    /**
+     * The three channel hyperstack, calibrated.
+     */
+    ImagePlus getImage() {
+        return image;
+    }
+
+    /**
+     * The FISH channel on its own, sharing pixels with the hyperstack.
+     */
+    ImagePlus getFish() {
+        ImagePlus imp = new ImagePlus("FISH", fish);
+        imp.setCalibration(image.getCalibration());
+        return imp;
+    }
+
+    /**
+     * The DAPI channel on its own, sharing pixels with the hyperstack.
+     */
+    ImagePlus getDapi() {
+        ImagePlus imp = new ImagePlus("DAPI", dapi);
+        imp.setCalibration(image.getCalibration());
+        return imp;
+    }
+
+    /**
+     * Ground truth label image, cell i has label i+1 as in the pipeline.
+     */
+    LabelImage getLabels() {
+        return labels;
+    }
+
+    /**
+     * Spot voxels {x, y, z}, z 0-based.
+     */
+    double[][] getSpots() {
+        return spots;
+    }
+
+    /**
+     * The 0-based cell of each spot.
+     */
+    int[] getSpotCells() {
+        return spotCells;
+    }
+
+    /**
+     * Calibrated distance from each spot to the nearest edge voxel of its nucleus.
+     */
+    double[] getEdgeDistances() {
+        return edgeDistances;
+    }
+
+    private static boolean inside(double[] n, double x, double y, double z) {
+        double dx = (x - n[0]) / n[3];
+        double dy = (y - n[1]) / n[4];
+        double dz = (z - n[2]) / n[5];
+        return dx * dx + dy * dy + dz * dz <= 1;
+    }
+
+    //Pixels of the nucleus in slice z
+    private static List<int[]> section(double[] n, int width, int height, double z) {
+        List<int[]> pixels = new ArrayList<>();
+        for (int y = Math.max(0, (int) (n[1] - n[4])); y <= Math.min(height - 1, n[1] + n[4]); y++) {
+            for (int x = Math.max(0, (int) (n[0] - n[3])); x <= Math.min(width - 1, n[0] + n[3]); x++) {
+                if (inside(n, x, y, z)) {
+                    pixels.add(new int[]{x, y});
+                }
+            }
+        }
+        return pixels;
+    }
+
+    //Far enough from the spots already placed in the same nucleus, those from first on
+    private static boolean isApart(double[] spot, List<double[]> placed, int first) {
+        for (int j = first; j < placed.size(); j++) {
+            double dx = spot[0] - placed.get(j)[0];
+            double dy = spot[1] - placed.get(j)[1];
+            if (dx * dx + dy * dy < MIN_SPOT_SEPARATION * MIN_SPOT_SEPARATION) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static short noisy(Random random, double mean, double noise) {
+        return (short) Math.max(0, Math.min(65535, Math.round(mean + random.nextGaussian() * noise)));
+    }
+
+    private static void addSpot(ImageStack stack, double x0, double y0, int z) {
+        short[] pixels = (short[]) stack.getPixels(z + 1);
+        int width = stack.getWidth();
+        int radius = (int) Math.ceil(4 * SPOT_SIGMA);
+        for (int y = (int) y0 - radius; y <= y0 + radius; y++) {
+            for (int x = (int) x0 - radius; x <= x0 + radius; x++) {
+                if (x >= 0 && y >= 0 && x < width && y < stack.getHeight()) {
+                    double r2 = (x - x0) * (x - x0) + (y - y0) * (y - y0);
+                    int value = (pixels[y * width + x] & 0xffff)
+                            + (int) Math.round(SPOT * Math.exp(-r2 / (2 * SPOT_SIGMA * SPOT_SIGMA)));
+                    pixels[y * width + x] = (short) Math.min(65535, value);
+                }
+            }
+        }
+    }
+
+    //Brute force over the edge voxels of each spot's nucleus
+    private double[] nearestEdgeDistances(double[][] nuclei, int size, int slices) {
+        List<List<int[]>> edges = new ArrayList<>();
+        for (double[] n : nuclei) {
+            List<int[]> edge = new ArrayList<>();
+            for (int z = 0; z < slices; z++) {
+                for (int[] p : section(n, size, size, z)) {
+                    int x = p[0];
+                    int y = p[1];
+                    boolean onEdge = x == 0 || y == 0 || z == 0 || x == size - 1 || y == size - 1 || z == slices - 1
+                            || !inside(n, x - 1, y, z) || !inside(n, x + 1, y, z)
+                            || !inside(n, x, y - 1, z) || !inside(n, x, y + 1, z)
+                            || !inside(n, x, y, z - 1) || !inside(n, x, y, z + 1);
+                    if (onEdge) {
+                        edge.add(new int[]{x, y, z});
+                    }
+                }
+            }
+            edges.add(edge);
+        }
+
+        double[] distances = new double[spots.length];
+        for (int i = 0; i < spots.length; i++) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int[] e : edges.get(spotCells[i])) {
+                double dx = (spots[i][0] - e[0]) * PIXEL_WIDTH;
+                double dy = (spots[i][1] - e[1]) * PIXEL_WIDTH;
+                double dz = (spots[i][2] - e[2]) * PIXEL_DEPTH;
+                best = Math.min(best, dx * dx + dy * dy + dz * dz);
+            }
+            distances[i] = Math.sqrt(best);
+        }
+        return distances;
+    }
+}